@@ -0,0 +1,10 @@
+package eventpassport;
+
+/** Event states used by the benchmarks. **/
+public enum BenchState {
+
+    INIT, RECEIVED, PARSED, QUEUED, DISPATCHED, RESPONDED, TARGET;
+
+    /** States that are cycled through to fill a passport. **/
+    static final BenchState[] FILLER = {RECEIVED, PARSED, QUEUED, DISPATCHED, RESPONDED};
+}
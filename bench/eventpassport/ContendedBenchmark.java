@@ -0,0 +1,111 @@
+package eventpassport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.openjdk.jmh.annotations.*;
+
+/** Compares the default and the padded passport layouts under fan-out
+ * stamping, where many threads stamp one passport, optionally while another
+ * thread polls it for new events. Like in {@link StampBenchmark}, the shared
+ * passport is replaced after every thread has made
+ * {@code STAMPS_PER_PASSPORT} stamps into it.
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContendedBenchmark {
+
+    static final int STAMPS_PER_PASSPORT = 1024;
+
+    @State(Scope.Group)
+    public static class Shared {
+        @Param({"false", "true"})
+        boolean padded;
+
+        AtomicReference<Passport<BenchState>> current;
+
+        @Setup
+        public void setup() {
+            current = new AtomicReference<>(new Passport<>(BenchState.INIT, padded));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Local {
+        Passport<BenchState> passport;
+        int stamps, nextIndex;
+
+        Passport<BenchState> next(Shared shared) {
+            if (passport == null || ++stamps == STAMPS_PER_PASSPORT) {
+                stamps = 0;
+                Passport<BenchState> seen = shared.current.get();
+                if (seen == passport)
+                    shared.current.compareAndSet(seen, new Passport<>(BenchState.INIT, shared.padded));
+                passport = shared.current.get();
+            }
+            return passport;
+        }
+
+        /** Return the shared passport for a polling reader, which never
+         * replaces it. **/
+        Passport<BenchState> poll(Shared shared) {
+            Passport<BenchState> p = shared.current.get();
+            if (p != passport) {
+                passport = p;
+                nextIndex = 0;
+            }
+            return p;
+        }
+    }
+
+    @Benchmark
+    @Group("stamp_8t")
+    @GroupThreads(8)
+    public Object stamp_8t(Shared shared, Local local) {
+        return local.next(shared).stamp(BenchState.QUEUED);
+    }
+
+    @Benchmark
+    @Group("stamp_64t")
+    @GroupThreads(64)
+    public Object stamp_64t(Shared shared, Local local) {
+        return local.next(shared).stamp(BenchState.QUEUED);
+    }
+
+    @Benchmark
+    @Group("polled_8t")
+    @GroupThreads(7)
+    public Object polledStamp_8t(Shared shared, Local local) {
+        return local.next(shared).stamp(BenchState.QUEUED);
+    }
+
+    /** Reader that looks for events it hasn't seen yet. **/
+    @Benchmark
+    @Group("polled_8t")
+    @GroupThreads(1)
+    public Object polledRead_8t(Shared shared, Local local) {
+        Event<BenchState> e = local.poll(shared).findEventByState(BenchState.QUEUED, local.nextIndex);
+        if (e != null)
+            local.nextIndex = e.index + 1;
+        return e;
+    }
+
+    @Benchmark
+    @Group("polled_64t")
+    @GroupThreads(60)
+    public Object polledStamp_64t(Shared shared, Local local) {
+        return local.next(shared).stamp(BenchState.QUEUED);
+    }
+
+    @Benchmark
+    @Group("polled_64t")
+    @GroupThreads(4)
+    public Object polledRead_64t(Shared shared, Local local) {
+        Event<BenchState> e = local.poll(shared).findEventByState(BenchState.QUEUED, local.nextIndex);
+        if (e != null)
+            local.nextIndex = e.index + 1;
+        return e;
+    }
+}
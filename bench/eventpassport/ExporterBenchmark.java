@@ -0,0 +1,45 @@
+package eventpassport;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Measures the cost of submitting a finished passport to an exporter that
+ * discards the batches, which is the part paid by the request threads. **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExporterBenchmark {
+
+    PassportExporter<BenchState> exporter;
+    Passport<BenchState> passport;
+
+    @Setup
+    public void setup() {
+        PassportCodec<BenchState> codec = new PassportCodec<>(new StateRegistry<>());
+        exporter = new PassportExporter<>(codec, (batch, n) -> {}, 1 << 16, 1 << 20);
+        exporter.start();
+        passport = new Passport<>(BenchState.INIT, 40);
+        for (int i = 0; i < 39; i++)
+            passport.stamp(BenchState.FILLER[i % BenchState.FILLER.length]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        exporter.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean submit_1t() {
+        return exporter.submit(passport);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean submit_8t() {
+        return exporter.submit(passport);
+    }
+}
@@ -0,0 +1,51 @@
+package eventpassport;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Measures the cost of appending a finished passport to a journal in a
+ * temporary directory, including the occasional segment roll. **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JournalBenchmark {
+
+    Path dir;
+    PassportJournal<BenchState> journal;
+    Passport<BenchState> passport;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("journal-bench");
+        PassportCodec<BenchState> codec = new PassportCodec<>(new StateRegistry<>());
+        journal = new PassportJournal<>(dir, codec, 64 << 20, 2);
+        passport = new Passport<>(BenchState.INIT, 40);
+        for (int i = 0; i < 39; i++)
+            passport.stamp(BenchState.FILLER[i % BenchState.FILLER.length]);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        journal.close();
+        for (Path p : PassportJournal.listSegments(dir))
+            Files.delete(p);
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean append_1t() {
+        return journal.append(passport);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean append_8t() {
+        return journal.append(passport);
+    }
+}
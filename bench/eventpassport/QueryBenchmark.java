@@ -0,0 +1,118 @@
+package eventpassport;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Measures the latency of the query methods on a quiescent passport of a
+ * given size. The queried state is stamped last, so the searches have to
+ * traverse the whole passport.
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    @Param({"8", "64", "1024", "16384"})
+    int events;
+
+    Passport<BenchState> passport;
+
+    final DurationQuery<BenchState> query = DurationQuery.<BenchState>builder()
+        .pair(BenchState.INIT, BenchState.RECEIVED)
+        .pair(BenchState.RECEIVED, BenchState.PARSED)
+        .pair(BenchState.PARSED, BenchState.QUEUED)
+        .pair(BenchState.QUEUED, BenchState.DISPATCHED)
+        .pair(BenchState.INIT, BenchState.TARGET)
+        .build();
+    final long[] durations = new long[query.size()];
+
+    @Setup
+    public void setup() {
+        passport = new Passport<>(BenchState.INIT);
+        for (int i = 0; i < events - 2; i++)
+            passport.stamp(BenchState.FILLER[i % BenchState.FILLER.length]);
+        passport.stamp(BenchState.TARGET);
+    }
+
+    @Benchmark
+    public long timeBetween() {
+        return passport.timeBetween(BenchState.INIT, BenchState.TARGET);
+    }
+
+    @Benchmark
+    public Object findEventByState() {
+        return passport.findEventByState(BenchState.TARGET);
+    }
+
+    @Benchmark
+    public String toStringBench() {
+        return passport.toString();
+    }
+
+    final PassportFormatter formatter = new PassportFormatter();
+    final StringBuilder sb = new StringBuilder();
+
+    /** Format into a reused StringBuilder, like a log appender would. **/
+    @Benchmark
+    public Object formatInto() {
+        sb.setLength(0);
+        return formatter.format(passport, sb);
+    }
+
+    @Benchmark
+    public Object getEvents() {
+        return passport.getEvents();
+    }
+
+    final PassportCursor<BenchState> cursor = new PassportCursor<>();
+    final long[] sum = new long[1];
+    final EventVisitor<BenchState> visitor = (state, timestamp, index) -> sum[0] += timestamp;
+
+    @Benchmark
+    public long forEach() {
+        passport.forEach(visitor);
+        return sum[0];
+    }
+
+    /** Iterate with a cursor that is reused between passports. **/
+    @Benchmark
+    public long cursor() {
+        long s = 0;
+        cursor.reset(passport);
+        while (cursor.next())
+            s += cursor.getTimestamp();
+        return s;
+    }
+
+    final PassportCodec<BenchState> codec = new PassportCodec<>(new StateRegistry<>());
+    final java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(1 << 20);
+
+    /** Encode into a reused buffer and read the events back. **/
+    @Benchmark
+    public long encodeDecode() {
+        buffer.clear();
+        codec.encode(passport, buffer);
+        buffer.flip();
+        return codec.decode(buffer).timeBetween(BenchState.INIT, BenchState.TARGET);
+    }
+
+    /** Five durations computed with separate timeBetween calls. **/
+    @Benchmark
+    public long timeBetweenX5() {
+        return passport.timeBetween(BenchState.INIT, BenchState.RECEIVED)
+            + passport.timeBetween(BenchState.RECEIVED, BenchState.PARSED)
+            + passport.timeBetween(BenchState.PARSED, BenchState.QUEUED)
+            + passport.timeBetween(BenchState.QUEUED, BenchState.DISPATCHED)
+            + passport.timeBetween(BenchState.INIT, BenchState.TARGET);
+    }
+
+    /** The same five durations computed in one pass. **/
+    @Benchmark
+    public long[] durationQueryX5() {
+        query.evaluate(passport, durations);
+        return durations;
+    }
+}
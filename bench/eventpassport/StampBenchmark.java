@@ -0,0 +1,149 @@
+package eventpassport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.openjdk.jmh.annotations.*;
+
+/** Measures the cost of a single stamp, both on a passport owned by one thread
+ * and on a passport shared by several stamping threads. To keep the memory
+ * bounded, every thread replaces the shared passport with a fresh one after
+ * {@code STAMPS_PER_PASSPORT} of its own stamps.
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StampBenchmark {
+
+    static final int STAMPS_PER_PASSPORT = 1024;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final AtomicReference<Passport<BenchState>> current =
+            new AtomicReference<>(new Passport<>(BenchState.INIT));
+    }
+
+    @State(Scope.Thread)
+    public static class Local {
+        Passport<BenchState> passport;
+        int stamps;
+
+        Passport<BenchState> next(Shared shared) {
+            if (passport == null || ++stamps == STAMPS_PER_PASSPORT) {
+                stamps = 0;
+                Passport<BenchState> seen = shared.current.get();
+                if (seen == passport)
+                    shared.current.compareAndSet(seen, new Passport<>(BenchState.INIT));
+                passport = shared.current.get();
+            }
+            return passport;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object stamp_1t(Shared shared, Local local) {
+        return local.next(shared).stamp(BenchState.QUEUED);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Object stamp_2t(Shared shared, Local local) {
+        return local.next(shared).stamp(BenchState.QUEUED);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object stamp_8t(Shared shared, Local local) {
+        return local.next(shared).stamp(BenchState.QUEUED);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Object stamp_32t(Shared shared, Local local) {
+        return local.next(shared).stamp(BenchState.QUEUED);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Striped {
+        final AtomicReference<StripedPassport<BenchState>> current =
+            new AtomicReference<>(new StripedPassport<>(BenchState.INIT));
+    }
+
+    @State(Scope.Thread)
+    public static class StripedLocal {
+        StripedPassport<BenchState> passport;
+        int stamps;
+
+        StripedPassport<BenchState> next(Striped shared) {
+            if (passport == null || ++stamps == STAMPS_PER_PASSPORT) {
+                stamps = 0;
+                StripedPassport<BenchState> seen = shared.current.get();
+                if (seen == passport)
+                    shared.current.compareAndSet(seen, new StripedPassport<>(BenchState.INIT));
+                passport = shared.current.get();
+            }
+            return passport;
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object stripedStamp_8t(Striped shared, StripedLocal local) {
+        return local.next(shared).stamp(BenchState.QUEUED);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Object stripedStamp_32t(Striped shared, StripedLocal local) {
+        return local.next(shared).stamp(BenchState.QUEUED);
+    }
+
+    /** A typical request lifecycle: create a passport and stamp 40 events. **/
+    @Benchmark
+    @OperationsPerInvocation(40)
+    public Object lifecycle_40() {
+        Passport<BenchState> p = new Passport<>(BenchState.INIT);
+        for (int i = 0; i < 39; i++)
+            p.stamp(BenchState.FILLER[i % BenchState.FILLER.length]);
+        return p;
+    }
+
+    /** Same lifecycle with the first chunk sized for all 40 events. **/
+    @Benchmark
+    @OperationsPerInvocation(40)
+    public Object hintedLifecycle_40() {
+        Passport<BenchState> p = new Passport<>(BenchState.INIT, 40);
+        for (int i = 0; i < 39; i++)
+            p.stamp(BenchState.FILLER[i % BenchState.FILLER.length]);
+        return p;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+        final PassportPool<BenchState> pool = new PassportPool<>(64, 64, false);
+    }
+
+    /** Same lifecycle with a pooled passport. **/
+    @Benchmark
+    @OperationsPerInvocation(40)
+    public Object pooledLifecycle_40(Pool pool) {
+        Passport<BenchState> p = pool.pool.acquire(BenchState.INIT);
+        for (int i = 0; i < 39; i++)
+            p.stamp(BenchState.FILLER[i % BenchState.FILLER.length]);
+        long d = p.timeBetween(BenchState.INIT, BenchState.RESPONDED);
+        pool.pool.release(p);
+        return d;
+    }
+
+    /** Same lifecycle on a single-writer passport. **/
+    @Benchmark
+    @OperationsPerInvocation(40)
+    public Object unsyncLifecycle_40() {
+        UnsyncPassport<BenchState> p = new UnsyncPassport<>(BenchState.INIT);
+        for (int i = 0; i < 39; i++)
+            p.stamp(BenchState.FILLER[i % BenchState.FILLER.length]);
+        return p.freeze();
+    }
+}
@@ -16,6 +16,18 @@
   (b/javac (assoc (#'bb/jar-opts (opts+))
                   :javac-opts ["-source" "8" "-target" "8"])))
 
+(defn- java8? []
+  (= "1.8" (System/getProperty "java.specification.version")))
+
+(defn javac-java9
+  "Compile the Java 9+ versions of classes from src-java9 into `out-dir`
+  against the Java 8 classes in `class-dir`."
+  ([class-dir] (javac-java9 class-dir class-dir))
+  ([class-dir out-dir]
+   (b/javac {:src-dirs ["src-java9"]
+             :class-dir out-dir
+             :javac-opts ["--release" "9" "-cp" class-dir]})))
+
 ;; Hack to propagate scope into pom.
 (alter-var-root
  #'clojure.tools.build.tasks.write-pom/to-dep
@@ -26,26 +38,60 @@
        (cond-> res
          (and alias scope) (conj [(keyword alias "scope") scope]))))))
 
-(defn test "Run all the tests." [opts]
+(defn test
+  "Run all the tests. Pass `:java8 true` to test the Java 8 versions of the
+  classes that have a Java 9+ counterpart; they are always tested on JDK 8."
+  [opts]
   (bb/clean opts)
   (javac (assoc opts :src-dirs ["src" "test"]))
+  ;; Tests run from the class directory where multi-release lookup doesn't
+  ;; apply, so test the Java 9+ classes by overwriting the Java 8 ones.
+  (when-not (or (:java8 opts) (java8?))
+    (javac-java9 (:class-dir (#'bb/jar-opts (opts+)))))
   (bb/run-tests (cond-> opts
                   (:clj opts) (assoc :aliases [(:clj opts)])))
   opts)
 
+(defn bench
+  "Compile and run JMH benchmarks. Pass JMH command line arguments as a vector,
+  e.g. `clojure -T:build bench :args '[\"QueryBenchmark\" \"-p\" \"events=1024\"]'`.
+  GC profiler is enabled by default to report allocation per operation. Pass
+  `:java8 true` to benchmark the Java 8 versions of the classes; they are
+  always used on JDK 8."
+  [{:keys [args] :or {args []} :as opts}]
+  (let [basis (b/create-basis {:aliases [:bench]})
+        class-dir "target/bench-classes"]
+    (b/delete {:path class-dir})
+    (b/javac {:src-dirs ["src" "bench"]
+              :class-dir class-dir
+              :basis basis
+              :javac-opts ["-source" "8" "-target" "8" "-processor"
+                           "org.openjdk.jmh.generators.BenchmarkProcessor"]})
+    (when-not (or (:java8 opts) (java8?))
+      (javac-java9 class-dir))
+    (let [cmd (b/java-command {:basis basis
+                               :cp (into [class-dir] (:classpath-roots basis))
+                               :main "org.openjdk.jmh.Main"
+                               :main-args (into ["-prof" "gc"] args)})]
+      (b/process cmd))))
+
 (defn jar
-  "Compile and package the JAR."
+  "Compile and package the JAR. Requires JDK 9+ to compile the Java 9+ versions
+  of the classes."
   [opts]
+  (when (java8?)
+    (throw (ex-info "The multi-release JAR must be built with JDK 9+" {})))
   (bb/clean opts)
   (javac opts)
   (let [{:keys [class-dir src+dirs] :as opts} (#'bb/jar-opts (opts+))]
+    (javac-java9 class-dir (str class-dir "/META-INF/versions/9"))
     (b/write-pom opts)
     (b/copy-dir {:src-dirs   src+dirs
                  :target-dir class-dir
                  :include    "**"
                  :ignores    [#"pom-template.xml" #".+\.java"]})
     (println "Building jar...")
-    (b/jar opts)))
+    (b/jar (assoc opts :manifest {"Multi-Release" "true"}))))
 
 (defn deploy "Deploy the JAR to Clojars." [opts]
   (bb/deploy (opts+)))
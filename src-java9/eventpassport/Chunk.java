@@ -0,0 +1,167 @@
+package eventpassport;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/** Chunks hold the stamped events of a passport. A passport keeps a fixed-size
+ * directory of chunks where each next chunk is twice the size of the previous
+ * one. Thanks to that, the chunk number and the offset inside the chunk for
+ * any absolute event index can be computed with bit arithmetic, see
+ * {@link #chunkNumber(int, int)} and {@link #offsetInChunk(int, int, int)}.
+ *
+ * This is the Java 9+ version of the class, packaged into the multi-release
+ * JAR. It keeps the events in plain arrays and accesses them through
+ * VarHandles with release/acquire semantics instead of the atomic array
+ * wrappers with volatile semantics. The API must match the Java 8 version.
+ * @param <T> Type of the event states held by the chunk.
+ **/
+class Chunk<T> implements ChunkedPassport.Slots {
+
+    /** Maximum number of chunks in a directory whose first chunk has the size
+     * of {@code 1 << firstShift}. Enough to address any non-negative int.
+     * @param firstShift Log2 of the first chunk size.
+     * @return Directory size.
+     **/
+    static int directorySize(int firstShift) {
+        return 32 - firstShift;
+    }
+
+    /** Return the number of the chunk that holds the event with the given
+     * absolute index.
+     * @param idx        Absolute index of the event.
+     * @param firstShift Log2 of the first chunk size.
+     * @return Chunk number in the directory.
+     **/
+    static int chunkNumber(int idx, int firstShift) {
+        // Chunk k starts at absolute index (2^k - 1) << firstShift. Adding the
+        // first chunk size to the index turns that into a power of two. The
+        // addition may overflow into the sign bit for the last chunk, which
+        // numberOfLeadingZeros handles as an unsigned value.
+        return 31 - Integer.numberOfLeadingZeros(idx + (1 << firstShift)) - firstShift;
+    }
+
+    /** Return the offset of the event with the given absolute index inside its
+     * chunk.
+     * @param idx        Absolute index of the event.
+     * @param chunkNum   Chunk number, as returned by {@code chunkNumber}.
+     * @param firstShift Log2 of the first chunk size.
+     * @return Index relative to the chunk.
+     **/
+    static int offsetInChunk(int idx, int chunkNum, int firstShift) {
+        return idx + (1 << firstShift) - (1 << (chunkNum + firstShift));
+    }
+
+    /** Placeholder stored instead of null states, so that null in the states
+     * array always means an unwritten slot. **/
+    static final Object NULL_STATE = new Object();
+
+    /** Number of unused slots on each side of the arrays in a padded chunk,
+     * sized for 128 bytes, i.e. two cache lines, which also defeats the
+     * adjacent line prefetch. References take 4 bytes with compressed oops,
+     * so the states array needs twice as many slots as the timestamps. **/
+    static final int STATES_PAD = 32;
+    static final int TIMESTAMPS_PAD = 16;
+
+    private static final VarHandle STATES =
+        MethodHandles.arrayElementVarHandle(Object[].class);
+
+    /** Array of states ("keys") for the stamped events. A state is written
+     * after its timestamp with release semantics, so a non-null value in this
+     * array means that the whole slot has been written.
+     **/
+    private final Object[] eventStates;
+
+    /** Array of timestamps for the stamped events. Accessed with plain reads
+     * and writes; the release store and the acquire load of the state order
+     * them. **/
+    private final long[] eventTimestamps;
+
+    /** Index of the first event slot in each array. **/
+    private final int statesBase;
+    private final int timestampsBase;
+    private final int size;
+
+    /** Construct a new Chunk that can hold {@code size} number of stamps. **/
+    Chunk(int size) {
+        this(size, false);
+    }
+
+    /** Construct a new Chunk that can hold {@code size} number of stamps. A
+     * padded chunk surrounds the event slots with unused ones, so that writes
+     * to the first and last events don't invalidate the cache lines holding
+     * the array headers, which every access reads for the bounds check, or
+     * the neighbouring objects.
+     * @param size   Number of events.
+     * @param padded Whether to pad the arrays.
+     **/
+    Chunk(int size, boolean padded) {
+        this.statesBase = padded ? STATES_PAD : 0;
+        this.timestampsBase = padded ? TIMESTAMPS_PAD : 0;
+        this.size = size;
+        this.eventStates = new Object[size + 2 * statesBase];
+        this.eventTimestamps = new long[size + 2 * timestampsBase];
+    }
+
+    /** Return the maximum size of the chunk.
+     * @return Number of events the chunk can hold.
+     **/
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** Return true if the event at the given index has been completely
+     * written. The index should be relative to the chunk, not absolute to the
+     * whole passport.
+     * @param idx Index of the event in the chunk.
+     * @return True if the slot is written.
+     **/
+    @Override
+    public boolean isPublished(int idx) {
+        return STATES.getAcquire(eventStates, statesBase + idx) != null;
+    }
+
+    /** Return the event state by the given index. The index should be relative
+     * to the chunk, not absolute to the whole passport.
+     * @param idx Index of the event in the chunk.
+     * @return Event state.
+     **/
+    @SuppressWarnings("unchecked")
+    T getState(int idx) {
+        Object state = STATES.getAcquire(eventStates, statesBase + idx);
+        return (state == NULL_STATE) ? null : (T)state;
+    }
+
+    /** Return the event timestamp state by the given index. The index should be
+     * relative to the chunk, not absolute to the whole passport. The read is
+     * plain, so the caller must have seen the slot published, either directly
+     * or through the passport's published count.
+     * @param idx Index of the event in the chunk.
+     * @return Event timestamp.
+     **/
+    long getTimestamp(int idx) {
+        return eventTimestamps[timestampsBase + idx];
+    }
+
+    /** Mark the slot at the given index as unwritten. The index should be
+     * relative to the chunk.
+     * @param idx Index of the event in the chunk.
+     **/
+    void clear(int idx) {
+        STATES.setRelease(eventStates, statesBase + idx, null);
+    }
+
+    /** Record an event specified by its state and timestamp at the given index.
+     * The index should be relative to the chunk, not absolute to the whole
+     * passport.
+     * @param idx Index in the chunk to save the event to.
+     * @param state Event state.
+     * @param timestamp Event timestamp.
+     **/
+    void put(int idx, T state, long timestamp) {
+        // Timestamp goes first; the release store of the state publishes the
+        // whole slot to readers that observe a non-null state.
+        eventTimestamps[timestampsBase + idx] = timestamp;
+        STATES.setRelease(eventStates, statesBase + idx, (state == null) ? NULL_STATE : state);
+    }
+}
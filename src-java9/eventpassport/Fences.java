@@ -0,0 +1,26 @@
+package eventpassport;
+
+import java.lang.invoke.VarHandle;
+
+/** Memory fences for ordering plain accesses to memory that has no atomic
+ * accessors, like the contents of a MappedByteBuffer.
+ *
+ * This is the Java 9+ version of the class, packaged into the multi-release
+ * JAR. It uses the VarHandle fences. The API must match the Java 8 version.
+ **/
+final class Fences {
+
+    private Fences() {}
+
+    /** Keep the loads and stores before this call from being reordered with
+     * the stores after it. **/
+    static void release() {
+        VarHandle.releaseFence();
+    }
+
+    /** Keep the loads before this call from being reordered with the loads
+     * and stores after it. **/
+    static void acquire() {
+        VarHandle.acquireFence();
+    }
+}
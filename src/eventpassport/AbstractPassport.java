@@ -0,0 +1,206 @@
+package eventpassport;
+
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Base class for the passport implementations. It defines the public API
+ * shared by all passports and provides generic implementations of the query
+ * methods on top of sequential access to the events through
+ * {@link EventCursor}. Subclasses supply the storage and may override the
+ * queries with faster versions that know the layout.
+ * @param <T> Type of the event states that could be stamped into the passport.
+ **/
+public abstract class AbstractPassport<T> {
+
+    private static final PassportFormatter FORMATTER = new PassportFormatter();
+
+    /** Wall clock time of passport creation. Not final because pooled
+     * passports are reissued, see {@link PassportPool}. **/
+    long issuedTimeMs;
+
+    AbstractPassport() {
+        issuedTimeMs = System.currentTimeMillis();
+    }
+
+    /** Record an event with the provided state into the passport. Timestamp
+     * will be obtained from {@code System.nanoTime}.
+     * @param  state Event state.
+     * @return       This object (for fluent interface).
+     **/
+    public AbstractPassport<T> stamp(T state) {
+        return stamp(state, System.nanoTime());
+    }
+
+    /** Record an event with the provided state and timestamp into the passport.
+     * @param  state     Event state.
+     * @param  timestamp Event timestamp.
+     * @return           This object (for fluent interface).
+     **/
+    public abstract AbstractPassport<T> stamp(T state, long timestamp);
+
+    /** Return a cursor over the published events, positioned before the
+     * first event.
+     * @return Cursor object.
+     **/
+    public EventCursor<T> cursor() {
+        return cursor(0);
+    }
+
+    /** Return a cursor over the published events, positioned before the
+     * first event whose index is not lower than {@code startFrom}.
+     * @param  startFrom Index of the first event to visit.
+     * @return           Cursor object.
+     **/
+    public abstract EventCursor<T> cursor(int startFrom);
+
+    /** Pass every published event to the visitor, in order.
+     * @param visitor Callback that receives the events.
+     **/
+    public void forEach(EventVisitor<? super T> visitor) {
+        EventCursor<T> c = cursor(0);
+        while (c.next())
+            visitor.visit(c.state, c.timestamp, c.index);
+    }
+
+    /** Find and return the first event in the passport that has the state equal
+     * to the provided state. Return null if the event was not found.
+     * @param  state State to search for.
+     * @return       Matched event or {@code null} if not found.
+     **/
+    public Event<T> findEventByState(T state) {
+        return findEventByState(state, 0);
+    }
+
+    /** Find and return the index of the event in the passport that has the
+     * state equal to the provided state. Begins searching from the provided
+     * starting index. Return -1 if the event was not found.
+     * @param  state     State to search for.
+     * @param  startFrom Starting index to search from.
+     * @return           Index of the found event.
+     **/
+    public Event<T> findEventByState(T state, int startFrom) {
+        EventCursor<T> c = cursor(startFrom);
+        while (c.next()) {
+            if (state.equals(c.state))
+                return c.event();
+        }
+        return null;
+    }
+
+    /** Calculate a period in nanoseconds between two given states, or -1 if
+     * either of the states was not found in the passport (or they are not one
+     * after the other). Note that if the same states are recorded multiple
+     * times in the passport, this method will return the period between first
+     * encountered states.
+     * @param  stateFrom Event state for the start of the period.
+     * @param  stateTo   Event state for the end of the period.
+     * @return Period duration in nanoseconds or -1 if such period does not
+     * exist. **/
+    public long timeBetween(T stateFrom, T stateTo) {
+        EventCursor<T> c = cursor(0);
+        boolean found = false;
+        while (!found && c.next())
+            found = stateFrom.equals(c.state);
+        if (!found) // stateFrom was not found
+            return -1;
+
+        long fromTime = c.timestamp;
+        while (c.next()) {
+            if (stateTo.equals(c.state))
+                return c.timestamp - fromTime;
+        }
+        return -1;
+    }
+
+    /** Return the last published event. The default implementation walks
+     * all events.
+     * @return Event object, or null if the passport has no events.
+     **/
+    public Event<T> lastEvent() {
+        EventCursor<T> c = cursor(0);
+        if (!c.next())
+            return null;
+        T state = c.state;
+        long timestamp = c.timestamp;
+        int index = c.index;
+        while (c.next()) {
+            state = c.state;
+            timestamp = c.timestamp;
+            index = c.index;
+        }
+        return new Event<>(state, timestamp, index);
+    }
+
+    /** Format the passport with the issue time and the offset of every event
+     * from the first one, see {@link PassportFormatter}.
+     * @return Formatted passport.
+     **/
+    @Override
+    public String toString() {
+        return FORMATTER.format(this);
+    }
+
+    /** Return a spliterator over the published events. Events published after
+     * this call are not included. The default implementation walks a cursor
+     * and splits by copying batches of events into arrays.
+     * @return Spliterator object.
+     **/
+    public Spliterator<Event<T>> spliterator() {
+        final EventCursor<T> c = cursor(0);
+        return new Spliterators.AbstractSpliterator<Event<T>>(
+            Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE) {
+            @Override
+            public boolean tryAdvance(Consumer<? super Event<T>> action) {
+                if (!c.next())
+                    return false;
+                action.accept(c.event());
+                return true;
+            }
+        };
+    }
+
+    /** Return a sequential stream of the published events. Call
+     * {@code parallel()} on it to process large passports in parallel.
+     * @return Stream of events.
+     **/
+    public Stream<Event<T>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /** Return a sequential stream of timestamps of the published events that
+     * have the given state.
+     * @param  state State to select the events by.
+     * @return       Stream of timestamps.
+     **/
+    public LongStream timestamps(T state) {
+        final EventCursor<T> c = cursor(0);
+        return StreamSupport.longStream(new Spliterators.AbstractLongSpliterator(
+            Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE) {
+                @Override
+                public boolean tryAdvance(LongConsumer action) {
+                    while (c.next()) {
+                        if (state.equals(c.state)) {
+                            action.accept(c.timestamp);
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            }, false);
+    }
+
+    /** Return a list of all events in the Passport. This method is inefficient
+     * and should only be used for testing and debugging purposes. Use
+     * {@link #forEach(EventVisitor)} or {@link #cursor()} to iterate the
+     * events on hot paths.
+     * @return List of Event objects.
+     **/
+    public List<Event<T>> getEvents() {
+        ArrayList<Event<T>> result = new ArrayList<>();
+        EventCursor<T> c = cursor(0);
+        while (c.next())
+            result.add(c.event());
+        return result;
+    }
+}
@@ -0,0 +1,161 @@
+package eventpassport;
+
+import java.util.concurrent.atomic.*;
+
+/** A thread-safe passport of fixed capacity for long-lived entities like
+ * websocket sessions or background jobs. It keeps the initial event and the
+ * latest {@code capacity} events in a preallocated ring; older events are
+ * dropped and counted. Memory used by the passport never changes after
+ * construction.
+ *
+ * Event indices are absolute: the initial event has index 0, the event stamped
+ * N-th after it has index N, regardless of how many events were dropped.
+ * Internally events are numbered with a long sequence, so the passport keeps
+ * working after 2^31 stamps; the int indices of such events wrap around, and
+ * {@code startFrom} arguments are matched against the retained events by
+ * their low 32 bits.
+ *
+ * Stamping is wait-free. Every ring slot carries the sequence number of the
+ * event stored in it, which a writer flips to negative while it writes the
+ * slot. Readers check the sequence number before and after reading a slot and
+ * skip slots that were being rewritten. In the unlikely case that a writer
+ * laps a slot that another writer is still filling, the newer event is dropped
+ * instead of waiting.
+ * @param <T> Type of the event states that could be stamped into the passport.
+ **/
+public class BoundedPassport<T> extends AbstractPassport<T> {
+
+    private final T initState;
+    private final long initTimestamp;
+    private final int capacity;
+
+    /** Number of events stamped after the initial one. **/
+    private final AtomicLong stampCount = new AtomicLong(0);
+
+    /** Sequence number of the event held by each slot, negated while the slot
+     * is being written. Zero means the slot is empty. **/
+    private final AtomicLongArray slotIndices;
+    private final AtomicReferenceArray<T> eventStates;
+    private final AtomicLongArray eventTimestamps;
+
+    /** Construct a new passport with an initial state.
+     * @param initState Initial state (first stamp). Can be null. It is never
+     *                  dropped from the passport.
+     * @param capacity  Maximum number of events retained besides the initial
+     *                  one.
+     **/
+    public BoundedPassport(T initState, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.initState = initState;
+        this.initTimestamp = System.nanoTime();
+        this.capacity = capacity;
+        slotIndices = new AtomicLongArray(capacity);
+        eventStates = new AtomicReferenceArray<>(capacity);
+        eventTimestamps = new AtomicLongArray(capacity);
+    }
+
+    /** Return the maximum number of retained events besides the initial one.
+     * @return Capacity of the ring.
+     **/
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Return the number of events that were stamped but are no longer held by
+     * the passport. This method scans the ring, so it takes O(capacity) time.
+     * The result is exact when no stamps are in progress.
+     * @return Number of dropped events.
+     **/
+    public long getDroppedCount() {
+        long end = stampCount.get();
+        long from = end - capacity + 1;
+        long held = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            long idx = Math.abs(slotIndices.get(slot));
+            if (idx >= from && idx <= end)
+                held++;
+        }
+        return end - held;
+    }
+
+    @Override
+    public BoundedPassport<T> stamp(T state) {
+        return stamp(state, System.nanoTime());
+    }
+
+    @Override
+    public BoundedPassport<T> stamp(T state, long timestamp) {
+        long idx = stampCount.getAndIncrement() + 1;
+        int slot = (int)((idx - 1) % capacity);
+
+        // Take the slot only if it holds an older event and no other writer is
+        // filling it. The CAS can only fail because the slot was claimed by a
+        // newer writer or released by an older one, so this loop makes at most
+        // a few iterations and never waits for another thread.
+        while (true) {
+            long prev = slotIndices.get(slot);
+            if (prev < 0 || prev >= idx)
+                // Either another writer is filling the slot, or the slot already
+                // holds a newer event. Drop our event.
+                return this;
+            if (slotIndices.compareAndSet(slot, prev, -idx))
+                break;
+        }
+        eventStates.set(slot, state);
+        eventTimestamps.set(slot, timestamp);
+        slotIndices.lazySet(slot, idx);
+        return this;
+    }
+
+    @Override
+    public EventCursor<T> cursor(int startFrom) {
+        return new RingCursor(startFrom);
+    }
+
+    /** Cursor that visits the initial event and the events in the ring that
+     * are completely written and not overwritten while being read. **/
+    private class RingCursor extends EventCursor<T> {
+
+        private final long end;
+        private long next;
+
+        RingCursor(int startFrom) {
+            end = stampCount.get();
+            long lo = Math.max(1, end - capacity + 1);
+            if (startFrom == 0 || (startFrom < 0 && end <= Integer.MAX_VALUE)) {
+                next = 0;
+            } else {
+                // Distance from the oldest retained event in int arithmetic,
+                // so that wrapped indices are matched too.
+                int delta = startFrom - (int)lo;
+                next = delta < 0 ? lo : Math.min(lo + delta, end + 1);
+            }
+        }
+
+        @Override
+        public boolean next() {
+            if (next == 0) {
+                next = Math.max(1, end - capacity + 1);
+                index = 0;
+                state = initState;
+                timestamp = initTimestamp;
+                return true;
+            }
+
+            for (; next <= end; next++) {
+                int slot = (int)((next - 1) % capacity);
+                if (slotIndices.get(slot) != next) continue;
+                T s = eventStates.get(slot);
+                long ts = eventTimestamps.get(slot);
+                if (slotIndices.get(slot) != next) continue;
+
+                index = (int)next++;
+                state = s;
+                timestamp = ts;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -2,52 +2,115 @@ package eventpassport;
 
 import java.util.concurrent.atomic.*;
 
-/** Chunks make up a thread-safe intrusive linked list that appends to the tail.
- * A chunk has a buffer of predefined size, and when it runs out of that buffer,
- * the call to {@code getNext()} generates and appends a new chunk twice the
- * size to the tail.
+/** Chunks hold the stamped events of a passport. A passport keeps a fixed-size
+ * directory of chunks where each next chunk is twice the size of the previous
+ * one. Thanks to that, the chunk number and the offset inside the chunk for
+ * any absolute event index can be computed with bit arithmetic, see
+ * {@link #chunkNumber(int, int)} and {@link #offsetInChunk(int, int, int)}.
+ *
+ * The JAR also contains a Java 9+ version of this class built from
+ * {@code src-java9}, any change here must be mirrored there.
  * @param <T> Type of the event states held by the chunk.
  **/
-class Chunk<T> {
+class Chunk<T> implements ChunkedPassport.Slots {
 
-    /** Array of states ("keys") for the stamped events. **/
-    final AtomicReferenceArray<T> eventStates;
+    /** Maximum number of chunks in a directory whose first chunk has the size
+     * of {@code 1 << firstShift}. Enough to address any non-negative int.
+     * @param firstShift Log2 of the first chunk size.
+     * @return Directory size.
+     **/
+    static int directorySize(int firstShift) {
+        return 32 - firstShift;
+    }
 
-    /** Array of timestamps for the stamped events. **/
-    final AtomicLongArray eventTimestamps;
+    /** Return the number of the chunk that holds the event with the given
+     * absolute index.
+     * @param idx        Absolute index of the event.
+     * @param firstShift Log2 of the first chunk size.
+     * @return Chunk number in the directory.
+     **/
+    static int chunkNumber(int idx, int firstShift) {
+        // Chunk k starts at absolute index (2^k - 1) << firstShift. Adding the
+        // first chunk size to the index turns that into a power of two. The
+        // addition may overflow into the sign bit for the last chunk, which
+        // numberOfLeadingZeros handles as an unsigned value.
+        return 31 - Integer.numberOfLeadingZeros(idx + (1 << firstShift)) - firstShift;
+    }
 
-    /** Reference to the next chunk in the list. If it points to null, then it
-     * means the current chunk is last in the list.
+    /** Return the offset of the event with the given absolute index inside its
+     * chunk.
+     * @param idx        Absolute index of the event.
+     * @param chunkNum   Chunk number, as returned by {@code chunkNumber}.
+     * @param firstShift Log2 of the first chunk size.
+     * @return Index relative to the chunk.
      **/
-    final AtomicReference<Chunk<T>> next = new AtomicReference<>(null);
+    static int offsetInChunk(int idx, int chunkNum, int firstShift) {
+        return idx + (1 << firstShift) - (1 << (chunkNum + firstShift));
+    }
+
+    /** Placeholder stored instead of null states, so that null in the states
+     * array always means an unwritten slot. **/
+    static final Object NULL_STATE = new Object();
+
+    /** Number of unused slots on each side of the arrays in a padded chunk,
+     * sized for 128 bytes, i.e. two cache lines, which also defeats the
+     * adjacent line prefetch. References take 4 bytes with compressed oops,
+     * so the states array needs twice as many slots as the timestamps. **/
+    static final int STATES_PAD = 32;
+    static final int TIMESTAMPS_PAD = 16;
+
+    /** Array of states ("keys") for the stamped events. A state is written
+     * after its timestamp with release semantics, so a non-null value in this
+     * array means that the whole slot has been written.
+     **/
+    private final AtomicReferenceArray<Object> eventStates;
+
+    /** Array of timestamps for the stamped events. **/
+    private final AtomicLongArray eventTimestamps;
+
+    /** Index of the first event slot in each array. **/
+    private final int statesBase;
+    private final int timestampsBase;
+    private final int size;
 
     /** Construct a new Chunk that can hold {@code size} number of stamps. **/
     Chunk(int size) {
-        this.eventStates = new AtomicReferenceArray<>(size);
-        this.eventTimestamps = new AtomicLongArray(size);
+        this(size, false);
+    }
+
+    /** Construct a new Chunk that can hold {@code size} number of stamps. A
+     * padded chunk surrounds the event slots with unused ones, so that writes
+     * to the first and last events don't invalidate the cache lines holding
+     * the array headers, which every access reads for the bounds check, or
+     * the neighbouring objects.
+     * @param size   Number of events.
+     * @param padded Whether to pad the arrays.
+     **/
+    Chunk(int size, boolean padded) {
+        this.statesBase = padded ? STATES_PAD : 0;
+        this.timestampsBase = padded ? TIMESTAMPS_PAD : 0;
+        this.size = size;
+        this.eventStates = new AtomicReferenceArray<>(size + 2 * statesBase);
+        this.eventTimestamps = new AtomicLongArray(size + 2 * timestampsBase);
     }
 
     /** Return the maximum size of the chunk.
      * @return Number of events the chunk can hold.
      **/
-    int size() {
-        return eventStates.length();
+    @Override
+    public int size() {
+        return size;
     }
 
-    /** Return the chunk that follows the current one in the list. If the
-     * current chunk is the last one, construct a new chunk twice the size, set
-     * it to be the next chunk of the current one, and return it.
-     * @return Chunk after the current one in the list.
+    /** Return true if the event at the given index has been completely
+     * written. The index should be relative to the chunk, not absolute to the
+     * whole passport.
+     * @param idx Index of the event in the chunk.
+     * @return True if the slot is written.
      **/
-    Chunk<T> getNext() {
-        Chunk<T> nextChunk = next.get();
-        if (nextChunk != null)
-            return nextChunk;
-
-        Chunk<T> newChunk = new Chunk<>(size() * 2);
-        // Try to CAS the newly created chunk in and return it. If CAS fails, it
-        // means somebody else has set the next chunk, fetch it again.
-        return next.compareAndSet(null, newChunk) ? newChunk : next.get();
+    @Override
+    public boolean isPublished(int idx) {
+        return eventStates.get(statesBase + idx) != null;
     }
 
     /** Return the event state by the given index. The index should be relative
@@ -55,8 +118,10 @@ class Chunk<T> {
      * @param idx Index of the event in the chunk.
      * @return Event state.
      **/
+    @SuppressWarnings("unchecked")
     T getState(int idx) {
-        return eventStates.get(idx);
+        Object state = eventStates.get(statesBase + idx);
+        return (state == NULL_STATE) ? null : (T)state;
     }
 
     /** Return the event timestamp state by the given index. The index should be
@@ -65,7 +130,15 @@ class Chunk<T> {
      * @return Event timestamp.
      **/
     long getTimestamp(int idx) {
-        return eventTimestamps.get(idx);
+        return eventTimestamps.get(timestampsBase + idx);
+    }
+
+    /** Mark the slot at the given index as unwritten. The index should be
+     * relative to the chunk.
+     * @param idx Index of the event in the chunk.
+     **/
+    void clear(int idx) {
+        eventStates.lazySet(statesBase + idx, null);
     }
 
     /** Record an event specified by its state and timestamp at the given index.
@@ -76,7 +149,9 @@ class Chunk<T> {
      * @param timestamp Event timestamp.
      **/
     void put(int idx, T state, long timestamp) {
-        eventStates.set(idx, state);
-        eventTimestamps.set(idx, timestamp);
+        // Timestamp goes first; the release store of the state publishes the
+        // whole slot to readers that observe a non-null state.
+        eventTimestamps.lazySet(timestampsBase + idx, timestamp);
+        eventStates.lazySet(statesBase + idx, (state == null) ? NULL_STATE : state);
     }
 }
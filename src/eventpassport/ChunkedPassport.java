@@ -0,0 +1,129 @@
+package eventpassport;
+
+import java.util.concurrent.atomic.*;
+
+/** Base of the passports that store events in chunks of doubling size,
+ * referenced from a small fixed-size directory. It holds the directory, the
+ * stamp counter and the watermark of published events, so the wait-free
+ * publication logic lives in one place; subclasses only define the chunk type
+ * and what goes into a slot.
+ *
+ * A stamping thread reserves an index with the stamp counter, then writes the
+ * event into the chunk that the index falls into, creating the chunk if
+ * needed. Readers see the events up to the first one that is not completely
+ * written, see {@link #publishedCount()}.
+ * @param <T> Type of the event states.
+ * @param <C> Type of the chunks.
+ **/
+abstract class ChunkedPassport<T, C extends ChunkedPassport.Slots> extends AbstractPassport<T> {
+
+    /** Slots of a chunk that readers can check for being completely written. **/
+    interface Slots {
+
+        /** Return the number of slots in the chunk.
+         * @return Chunk size.
+         **/
+        int size();
+
+        /** Return true if the event at the given offset is completely written.
+         * @param  idx Offset in the chunk.
+         * @return     True if the event can be read.
+         **/
+        boolean isPublished(int idx);
+    }
+
+    final AtomicReferenceArray<C> chunks;
+    /** Number of leading events known to be completely written. Advanced by
+     * readers, never by the stamping threads. **/
+    final AtomicInteger publishedCount;
+    final AtomicInteger stampCount;
+    /** Log2 of the first chunk size. **/
+    final int firstShift;
+
+    /** Construct an empty directory. The subclass installs the first chunk.
+     * @param firstShift Log2 of the first chunk size.
+     * @param padded     Whether the counters occupy separate cache lines.
+     **/
+    ChunkedPassport(int firstShift, boolean padded) {
+        this.firstShift = firstShift;
+        // The padding follows the value, so the counters are allocated before
+        // the chunk directory to keep it off the stamp counter's cache line.
+        if (padded) {
+            publishedCount = new PaddedAtomicInteger(0);
+            stampCount = new PaddedAtomicInteger(0);
+        } else {
+            publishedCount = new AtomicInteger(0);
+            stampCount = new AtomicInteger(0);
+        }
+        chunks = new AtomicReferenceArray<>(Chunk.directorySize(firstShift));
+    }
+
+    /** Construct a chunk with the given number of slots.
+     * @param  size Chunk size.
+     * @return      Chunk object.
+     **/
+    abstract C newChunk(int size);
+
+    /** Return log2 of the first chunk size.
+     * @return First chunk shift.
+     **/
+    int firstShift() {
+        return firstShift;
+    }
+
+    /** Return the chunk with the given number from the directory. If the chunk
+     * doesn't exist yet, construct it and try to install it into the directory.
+     * Only the stamping path may call this method.
+     * @param  k Chunk number.
+     * @return   Chunk object.
+     **/
+    final C chunk(int k) {
+        C chunk = chunks.get(k);
+        if (chunk != null)
+            return chunk;
+
+        C newChunk = newChunk(1 << (firstShift + k));
+        // Try to CAS the newly created chunk in and return it. If CAS fails, it
+        // means somebody else has set the chunk, fetch it again.
+        return chunks.compareAndSet(k, null, newChunk) ? newChunk : chunks.get(k);
+    }
+
+    /** Return the chunk with the given number from the directory, or null if
+     * it doesn't exist yet. Read paths must use this method rather than
+     * {@code chunk} so that queries never allocate. Any chunk that holds a
+     * published event is guaranteed to be present.
+     * @param  k Chunk number.
+     * @return   Chunk object or null.
+     **/
+    final C peekChunk(int k) {
+        return chunks.get(k);
+    }
+
+    /** Return the number of leading events that are completely written. A
+     * stamping thread first reserves an index and only then writes the event,
+     * so concurrent readers must not look past this watermark. Events after an
+     * unfinished one are not visible until it is finished too. A negative
+     * stamp counter is returned as is.
+     * @return Number of readable events.
+     **/
+    int publishedCount() {
+        int published = publishedCount.get();
+        int total = stampCount.get();
+        if (total < 0)
+            return total;
+        int n = published;
+        while (n < total) {
+            int k = Chunk.chunkNumber(n, firstShift);
+            C chunk = peekChunk(k);
+            if (chunk == null || !chunk.isPublished(Chunk.offsetInChunk(n, k, firstShift)))
+                break;
+            n++;
+        }
+
+        // Move the watermark forward so that the next reader doesn't have to
+        // verify the same slots again.
+        while (n > published && !publishedCount.compareAndSet(published, n))
+            published = publishedCount.get();
+        return n;
+    }
+}
@@ -0,0 +1,82 @@
+package eventpassport;
+
+import java.util.concurrent.atomic.*;
+
+/** A chunk of events for {@link CompactPassport}. Timestamps are stored as
+ * unsigned 32-bit deltas from the base timestamp of the passport. Timestamps
+ * that don't fit are stored in full in a secondary array that is allocated on
+ * first use, and the delta slot holds the {@code ESCAPE} marker. Chunks are
+ * addressed the same way as in {@link Chunk}.
+ * @param <T> Type of the event states held by the chunk.
+ **/
+class CompactChunk<T> implements ChunkedPassport.Slots {
+
+    /** Delta value that means the timestamp is stored in the wide array. **/
+    static final int ESCAPE = -1;
+
+    /** Array of states, with the same publication rules as in {@link Chunk}. **/
+    final AtomicReferenceArray<Object> eventStates;
+
+    /** Array of timestamp deltas, interpreted as unsigned ints. **/
+    final AtomicIntegerArray eventDeltas;
+
+    /** Full timestamps of the escaped events, or null if there were none. **/
+    final AtomicReference<AtomicLongArray> wideTimestamps = new AtomicReference<>(null);
+
+    CompactChunk(int size) {
+        this.eventStates = new AtomicReferenceArray<>(size);
+        this.eventDeltas = new AtomicIntegerArray(size);
+    }
+
+    @Override
+    public int size() {
+        return eventStates.length();
+    }
+
+    @Override
+    public boolean isPublished(int idx) {
+        return eventStates.get(idx) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    T getState(int idx) {
+        Object state = eventStates.get(idx);
+        return (state == Chunk.NULL_STATE) ? null : (T)state;
+    }
+
+    /** Return the timestamp of the event by reconstructing it from the delta.
+     * @param idx  Index of the event in the chunk.
+     * @param base Base timestamp of the passport.
+     * @param unit Resolution of the deltas in nanoseconds.
+     * @return Event timestamp.
+     **/
+    long getTimestamp(int idx, long base, long unit) {
+        int delta = eventDeltas.get(idx);
+        if (delta == ESCAPE)
+            return wideTimestamps.get().get(idx);
+        return base + (delta & 0xFFFFFFFFL) * unit;
+    }
+
+    /** Record an event at the given index.
+     * @param idx       Index in the chunk to save the event to.
+     * @param state     Event state.
+     * @param timestamp Event timestamp.
+     * @param base      Base timestamp of the passport.
+     * @param unit      Resolution of the deltas in nanoseconds.
+     **/
+    void put(int idx, T state, long timestamp, long base, long unit) {
+        long delta = (timestamp - base) / unit;
+        if (timestamp >= base && delta < 0xFFFFFFFFL) {
+            eventDeltas.lazySet(idx, (int)delta);
+        } else {
+            AtomicLongArray wide = wideTimestamps.get();
+            if (wide == null) {
+                AtomicLongArray newWide = new AtomicLongArray(size());
+                wide = wideTimestamps.compareAndSet(null, newWide) ? newWide : wideTimestamps.get();
+            }
+            wide.lazySet(idx, timestamp);
+            eventDeltas.lazySet(idx, ESCAPE);
+        }
+        eventStates.lazySet(idx, (state == null) ? Chunk.NULL_STATE : state);
+    }
+}
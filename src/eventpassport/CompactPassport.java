@@ -0,0 +1,99 @@
+package eventpassport;
+
+import java.util.concurrent.TimeUnit;
+
+/** A thread-safe passport that stores timestamps as 32-bit deltas from the
+ * timestamp of the initial event, halving the memory taken by timestamps.
+ * With nanosecond resolution, deltas cover about 4.29 seconds; timestamps
+ * outside of that range (or earlier than the initial event) are stored in full
+ * in a secondary array allocated on demand. A coarser resolution extends the
+ * range at the cost of precision: with microseconds, deltas cover over 71
+ * minutes. Timestamps returned by the query methods are always in nanoseconds.
+ *
+ * Apart from the storage, the implementation is shared with
+ * {@link Passport}: chunks of doubling size in a fixed directory, and a
+ * published-count watermark for readers.
+ * @param <T> Type of the event states that could be stamped into the passport.
+ **/
+public class CompactPassport<T> extends ChunkedPassport<T, CompactChunk<T>> {
+
+    private static final int FIRST_CHUNK_SHIFT = 3;
+
+    private final long baseTimestamp;
+    /** Resolution of the stored deltas in nanoseconds. **/
+    private final long unit;
+
+    /** Construct a new passport with an initial state and nanosecond
+     * resolution.
+     * @param initState Initial state (first stamp). Can be null.
+     **/
+    public CompactPassport(T initState) {
+        this(initState, TimeUnit.NANOSECONDS);
+    }
+
+    /** Construct a new passport with an initial state.
+     * @param initState  Initial state (first stamp). Can be null.
+     * @param resolution Resolution of the stored deltas. Timestamps stored as
+     *                   deltas are truncated to it; escaped timestamps are
+     *                   kept exact.
+     **/
+    public CompactPassport(T initState, TimeUnit resolution) {
+        super(FIRST_CHUNK_SHIFT, false);
+        unit = resolution.toNanos(1);
+        baseTimestamp = System.nanoTime();
+        chunks.set(0, new CompactChunk<T>(1 << FIRST_CHUNK_SHIFT));
+        append(initState, baseTimestamp);
+    }
+
+    @Override
+    CompactChunk<T> newChunk(int size) {
+        return new CompactChunk<>(size);
+    }
+
+    @Override
+    public CompactPassport<T> stamp(T state) {
+        return stamp(state, System.nanoTime());
+    }
+
+    @Override
+    public CompactPassport<T> stamp(T state, long timestamp) {
+        append(state, timestamp);
+        return this;
+    }
+
+    private void append(T state, long timestamp) {
+        int idx = stampCount.getAndIncrement();
+        int k = Chunk.chunkNumber(idx, FIRST_CHUNK_SHIFT);
+        chunk(k).put(Chunk.offsetInChunk(idx, k, FIRST_CHUNK_SHIFT), state, timestamp,
+                     baseTimestamp, unit);
+    }
+
+    @Override
+    public EventCursor<T> cursor(int startFrom) {
+        final int end = publishedCount();
+        EventCursor<T> c = new EventCursor<T>() {
+                CompactChunk<T> chunk;
+                int k, ci;
+
+                @Override
+                public boolean next() {
+                    if (index + 1 >= end)
+                        return false;
+                    index++;
+                    if (chunk == null) {
+                        k = Chunk.chunkNumber(index, FIRST_CHUNK_SHIFT);
+                        ci = Chunk.offsetInChunk(index, k, FIRST_CHUNK_SHIFT);
+                        chunk = peekChunk(k);
+                    } else if (++ci == chunk.size()) {
+                        ci = 0;
+                        chunk = peekChunk(++k);
+                    }
+                    state = chunk.getState(ci);
+                    timestamp = chunk.getTimestamp(ci, baseTimestamp, unit);
+                    return true;
+                }
+            };
+        c.index = Math.max(startFrom, 0) - 1;
+        return c;
+    }
+}
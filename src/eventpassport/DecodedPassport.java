@@ -0,0 +1,88 @@
+package eventpassport;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/** A read-only passport decoded by {@link PassportCodec}. It doesn't copy the
+ * events out of the buffer; every query decodes them from the buffer anew,
+ * so the buffer must not be modified while the passport is in use. Stamping
+ * throws UnsupportedOperationException. Concurrent queries are safe.
+ * @param <T> Type of the event states.
+ **/
+public class DecodedPassport<T> extends AbstractPassport<T> {
+
+    private final StateRegistry<T> registry;
+    /** Read-only view of the encoded passport after the length field. **/
+    private final ByteBuffer body;
+    /** Position of the first event in the body. **/
+    private final int eventsStart;
+
+    DecodedPassport(StateRegistry<T> registry, ByteBuffer body) {
+        this.registry = registry;
+        ByteBuffer b = body.duplicate();
+        try {
+            this.issuedTimeMs = PassportCodec.unzigzag(PassportCodec.getVarLong(b));
+            this.eventsStart = b.position();
+            validate(b);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed passport: truncated varint");
+        }
+        this.body = body;
+    }
+
+    /** Walk the events once and check that every id is known to the registry
+     * and the last event ends exactly at the end of the body. **/
+    private void validate(ByteBuffer b) {
+        int ids = registry.size();
+        while (b.hasRemaining()) {
+            long id = PassportCodec.getVarLong(b);
+            if (id < 0 || id >= ids)
+                throw new IllegalArgumentException("Malformed passport: unknown state id " + id);
+            PassportCodec.getVarLong(b);
+        }
+    }
+
+    /** Not supported, decoded passports are read-only.
+     * @throws UnsupportedOperationException Always.
+     **/
+    @Override
+    public DecodedPassport<T> stamp(T state, long timestamp) {
+        throw new UnsupportedOperationException("Decoded passport is read-only");
+    }
+
+    /** Return the number of encoded bytes that this passport reads from,
+     * excluding the version and the length.
+     * @return Size in bytes.
+     **/
+    public int encodedSize() {
+        return body.limit();
+    }
+
+    @Override
+    public EventCursor<T> cursor(int startFrom) {
+        final int from = Math.max(startFrom, 0);
+        // Each cursor reads through its own duplicate, so that concurrent
+        // cursors don't share the position.
+        final ByteBuffer b = body.duplicate();
+        b.position(eventsStart);
+        EventCursor<T> c = new EventCursor<T>() {
+                private long prev = 0;
+
+                @Override
+                public boolean next() {
+                    while (b.hasRemaining()) {
+                        int id = (int)PassportCodec.getVarLong(b);
+                        prev += PassportCodec.unzigzag(PassportCodec.getVarLong(b));
+                        if (++index >= from) {
+                            state = registry.stateOf(id);
+                            timestamp = prev;
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            };
+        c.index = -1;
+        return c;
+    }
+}
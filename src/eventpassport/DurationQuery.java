@@ -0,0 +1,155 @@
+package eventpassport;
+
+import java.util.*;
+
+/** A precompiled set of (from, to) state pairs whose durations can be
+ * extracted from a passport in a single pass. Calling
+ * {@link AbstractPassport#timeBetween} for every pair rescans the passport
+ * each time; {@link #evaluate} walks the events once and fills the durations
+ * of all pairs into a caller-provided array, without allocating for
+ * {@link Passport} and its subclasses.
+ *
+ * Build the query once, e.g. at startup, and reuse it from any thread:
+ * <pre>
+ * DurationQuery&lt;State&gt; q = DurationQuery.&lt;State&gt;builder()
+ *     .pair(State.CREATED, State.REQUEST_SENT)
+ *     .pair(State.REQUEST_SENT, State.RESPONSE_RECEIVED)
+ *     .build();
+ * long[] durations = new long[q.size()];
+ * q.evaluate(passport, durations);
+ * </pre>
+ * The semantics of every pair are the same as in {@code timeBetween}: the
+ * period between the first occurrence of the "from" state and the first
+ * occurrence of the "to" state after it.
+ * @param <T> Type of the event states.
+ **/
+public class DurationQuery<T> {
+
+    /** Maximum number of pairs in a single query. **/
+    public static final int MAX_PAIRS = 64;
+
+    /** Bitmasks of the pairs in which a state participates. **/
+    private static class Roles {
+        long fromMask;
+        long toMask;
+    }
+
+    /** Cursors for walking {@link Passport}s without allocating. Cleared
+     * after every use so they don't keep the passport reachable. **/
+    private static final ThreadLocal<PassportCursor<Object>> CURSORS =
+        ThreadLocal.withInitial(PassportCursor::new);
+
+    private final Map<Object, Roles> roles;
+    private final int size;
+    private final long allPairs;
+
+    private DurationQuery(List<T> statesFrom, List<T> statesTo) {
+        size = statesFrom.size();
+        roles = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            roles.computeIfAbsent(statesFrom.get(i), k -> new Roles()).fromMask |= 1L << i;
+            roles.computeIfAbsent(statesTo.get(i), k -> new Roles()).toMask |= 1L << i;
+        }
+        allPairs = (size == 64) ? -1L : (1L << size) - 1;
+    }
+
+    /** Return a builder for a new query.
+     * @param <T> Type of the event states.
+     * @return Builder object.
+     **/
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    /** Return the number of pairs in the query, which is also the minimum
+     * length of the output array.
+     * @return Number of pairs.
+     **/
+    public int size() {
+        return size;
+    }
+
+    /** Calculate the durations of all pairs in the given passport. The duration
+     * of the pair number i is written to {@code out[i]} in nanoseconds, or -1
+     * if such period doesn't exist in the passport.
+     * @param  passport Passport to calculate durations from.
+     * @param  out      Array of at least {@code size()} elements.
+     * @return          Number of pairs whose durations were found.
+     **/
+    @SuppressWarnings("unchecked")
+    public int evaluate(AbstractPassport<T> passport, long[] out) {
+        if (out.length < size)
+            throw new IllegalArgumentException("Output array is shorter than the number of pairs: "
+                                               + out.length + " < " + size);
+        // A new cursor is only optimized away while the call site sees a single
+        // passport type, so Passports are walked with a reused one.
+        if (!(passport instanceof Passport))
+            return evaluate(passport.cursor(0), out);
+        PassportCursor<T> c = (PassportCursor<T>)(PassportCursor<?>)CURSORS.get();
+        try {
+            return evaluate(c.reset((Passport<T>)passport), out);
+        } finally {
+            c.clear();
+        }
+    }
+
+    private int evaluate(EventCursor<T> c, long[] out) {
+        // Pairs whose "from" state was seen. Until the pair is done, out[i]
+        // holds the timestamp of the "from" state.
+        long pending = 0;
+        long done = 0;
+
+        while (done != allPairs && c.next()) {
+            Roles r = roles.get(c.state);
+            if (r == null) continue;
+            long ts = c.timestamp;
+
+            // Complete pairs first so that a state that is both "from" and "to"
+            // of the same pair is matched with its next occurrence.
+            long m = r.toMask & pending;
+            pending &= ~m;
+            done |= m;
+            for (; m != 0; m &= m - 1) {
+                int p = Long.numberOfTrailingZeros(m);
+                out[p] = ts - out[p];
+            }
+
+            m = r.fromMask & ~(pending | done);
+            pending |= m;
+            for (; m != 0; m &= m - 1)
+                out[Long.numberOfTrailingZeros(m)] = ts;
+        }
+
+        for (long m = allPairs & ~done; m != 0; m &= m - 1)
+            out[Long.numberOfTrailingZeros(m)] = -1;
+        return Long.bitCount(done);
+    }
+
+    /** Collects the state pairs for a {@link DurationQuery}. **/
+    public static class Builder<T> {
+
+        private final List<T> statesFrom = new ArrayList<>();
+        private final List<T> statesTo = new ArrayList<>();
+
+        /** Add a pair of states to the query. Pairs are numbered in the order
+         * they are added, starting from 0.
+         * @param  stateFrom Event state for the start of the period.
+         * @param  stateTo   Event state for the end of the period.
+         * @return           This object (for fluent interface).
+         **/
+        public Builder<T> pair(T stateFrom, T stateTo) {
+            if (statesFrom.size() == MAX_PAIRS)
+                throw new IllegalStateException("A query can't have more than " + MAX_PAIRS + " pairs");
+            statesFrom.add(stateFrom);
+            statesTo.add(stateTo);
+            return this;
+        }
+
+        /** Build the query.
+         * @return Query object.
+         **/
+        public DurationQuery<T> build() {
+            return new DurationQuery<>(statesFrom, statesTo);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package eventpassport;
+
+import java.util.concurrent.atomic.*;
+
+/** Aggregates durations between two states over many passports into a
+ * histogram, without locks and without external dependencies. Call
+ * {@link #record(AbstractPassport)} when a passport is finished, and
+ * periodically take a {@link Snapshot} to report percentiles to the monitoring
+ * system.
+ *
+ * The histogram uses log-linear buckets, like HdrHistogram: values are grouped
+ * by their highest set bit, and each such group is divided into
+ * {@code 2^precisionBits} linear sub-buckets. This bounds the relative error of
+ * reported values by {@code 2^-precisionBits}. Bucket counters are striped
+ * across several arrays picked by the recording thread, so that concurrent
+ * recorders rarely write to the same cache lines.
+ * @param <T> Type of the event states.
+ **/
+public class DurationRecorder<T> {
+
+    private static final int DEFAULT_PRECISION_BITS = 5;
+
+    private final T stateFrom;
+    private final T stateTo;
+    private final int precisionBits;
+    private final int bucketCount;
+
+    /** Counter stripes. Every stripe holds a counter per bucket, followed by
+     * the maximum value recorded into this stripe. **/
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+
+    /** Construct a recorder for the duration between two states with the
+     * default precision (about 3% relative error).
+     * @param stateFrom Event state for the start of the period.
+     * @param stateTo   Event state for the end of the period.
+     **/
+    public DurationRecorder(T stateFrom, T stateTo) {
+        this(stateFrom, stateTo, DEFAULT_PRECISION_BITS);
+    }
+
+    /** Construct a recorder for the duration between two states.
+     * @param stateFrom     Event state for the start of the period.
+     * @param stateTo       Event state for the end of the period.
+     * @param precisionBits Number of linear sub-buckets per power of two, as a
+     *                      power of two. Must be between 1 and 10.
+     **/
+    public DurationRecorder(T stateFrom, T stateTo, int precisionBits) {
+        if (precisionBits < 1 || precisionBits > 10)
+            throw new IllegalArgumentException("precisionBits must be between 1 and 10: " + precisionBits);
+        this.stateFrom = stateFrom;
+        this.stateTo = stateTo;
+        this.precisionBits = precisionBits;
+        // Values below 2^precisionBits get a bucket each, then every power of
+        // two up to 2^62 gets 2^precisionBits buckets.
+        this.bucketCount = (64 - precisionBits) << precisionBits;
+
+        int n = Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), 8));
+        stripes = new AtomicLongArray[n];
+        for (int i = 0; i < n; i++)
+            stripes[i] = new AtomicLongArray(bucketCount + 1);
+        stripeMask = n - 1;
+    }
+
+    /** Return the bucket index for the given non-negative value. **/
+    int bucketIndex(long value) {
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb < precisionBits)
+            return (int)value;
+        int shift = msb - precisionBits;
+        int sub = (int)(value >>> shift) & ((1 << precisionBits) - 1);
+        return ((shift + 1) << precisionBits) + sub;
+    }
+
+    /** Return the highest value that falls into the bucket with the given
+     * index. **/
+    static long highestValueInBucket(int idx, int precisionBits) {
+        int group = idx >>> precisionBits;
+        if (group == 0)
+            return idx;
+        int shift = group - 1;
+        long sub = (idx & ((1 << precisionBits) - 1)) | (1L << precisionBits);
+        return (((sub + 1) << shift) - 1);
+    }
+
+    private AtomicLongArray stripe() {
+        // Thread IDs are sequential, the multiplication spreads them across
+        // stripes.
+        int h = (int)Thread.currentThread().getId() * 0x9E3779B9;
+        return stripes[(h >>> 16) & stripeMask];
+    }
+
+    /** Calculate the duration between the recorder's states in the given
+     * passport and record it. Nothing is recorded if either state is missing.
+     * @param  passport Passport to take the duration from.
+     * @return          Recorded duration in nanoseconds, or -1 if the duration
+     *                  doesn't exist in the passport.
+     **/
+    public long record(AbstractPassport<T> passport) {
+        long duration = passport.timeBetween(stateFrom, stateTo);
+        if (duration >= 0)
+            recordValue(duration);
+        return duration;
+    }
+
+    /** Record an arbitrary duration. Negative values are ignored.
+     * @param duration Duration in nanoseconds.
+     **/
+    public void recordValue(long duration) {
+        if (duration < 0) return;
+        AtomicLongArray stripe = stripe();
+        stripe.getAndIncrement(bucketIndex(duration));
+
+        long max;
+        while ((max = stripe.get(bucketCount)) < duration
+               && !stripe.compareAndSet(bucketCount, max, duration));
+    }
+
+    /** Return a snapshot of all values recorded so far.
+     * @return Snapshot object.
+     **/
+    public Snapshot snapshot() {
+        return takeSnapshot(false);
+    }
+
+    /** Return a snapshot of all values recorded so far and reset the recorder.
+     * Values recorded concurrently end up either in this snapshot or in the
+     * next one.
+     * @return Snapshot object.
+     **/
+    public Snapshot snapshotAndReset() {
+        return takeSnapshot(true);
+    }
+
+    private Snapshot takeSnapshot(boolean reset) {
+        long[] counts = new long[bucketCount];
+        long max = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < bucketCount; i++)
+                counts[i] += reset ? stripe.getAndSet(i, 0) : stripe.get(i);
+            max = Math.max(max, reset ? stripe.getAndSet(bucketCount, 0) : stripe.get(bucketCount));
+        }
+        return new Snapshot(counts, max, precisionBits);
+    }
+
+    /** An immutable copy of the recorded histogram. **/
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long max;
+        private final int precisionBits;
+
+        Snapshot(long[] counts, long max, int precisionBits) {
+            long total = 0;
+            for (long c : counts)
+                total += c;
+            this.counts = counts;
+            this.count = total;
+            this.max = max;
+            this.precisionBits = precisionBits;
+        }
+
+        /** Return the number of recorded values.
+         * @return Number of values.
+         **/
+        public long getCount() {
+            return count;
+        }
+
+        /** Return the largest recorded value, or 0 if nothing was recorded.
+         * @return Maximum value in nanoseconds.
+         **/
+        public long getMax() {
+            return max;
+        }
+
+        /** Return the value below or at which the given percentage of recorded
+         * values fall. The result is the upper bound of the matching bucket,
+         * but never greater than the maximum recorded value.
+         * @param  percentile Percentile between 0 and 100.
+         * @return            Value in nanoseconds, or 0 if nothing was recorded.
+         **/
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(highestValueInBucket(i, precisionBits), max);
+            }
+            return max;
+        }
+
+        public long getP50() {
+            return getValueAtPercentile(50);
+        }
+
+        public long getP99() {
+            return getValueAtPercentile(99);
+        }
+
+        public long getP999() {
+            return getValueAtPercentile(99.9);
+        }
+
+        public String toString() {
+            return "count=" + count + " p50=" + getP50() + " p99=" + getP99()
+                + " p999=" + getP999() + " max=" + max;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package eventpassport;
+
+import java.util.concurrent.atomic.*;
+
+/** A Passport specialized for enum states. Next to the regular chunked log of
+ * events, it keeps two tables indexed by the enum ordinal that store the
+ * indices of the first and the last occurrence of each state. This makes
+ * {@code findEventByState(state)} and the common case of {@code timeBetween}
+ * (the first occurrence of {@code stateTo} comes after the first occurrence of
+ * {@code stateFrom}) constant-time. Other cases fall back to the linear scan
+ * of the parent class, bounded by the occurrence tables.
+ *
+ * Stamping remains free of locks, but updating the occurrence tables is
+ * lock-free rather than wait-free: a CAS on the table slot can be retried if
+ * another thread concurrently stamps the same state.
+ * @param <E> Enum type of the event states.
+ **/
+public class EnumPassport<E extends Enum<E>> extends Passport<E> {
+
+    /** Caches the number of constants per enum class, since
+     * {@code Class.getEnumConstants()} copies the array on every call. **/
+    private static final ClassValue<Integer> CONSTANT_COUNT = new ClassValue<Integer>() {
+            @Override
+            protected Integer computeValue(Class<?> cls) {
+                return cls.getEnumConstants().length;
+            }
+        };
+
+    /** Index of the first event with the given ordinal, plus one. Zero means
+     * that the state has not been stamped yet. **/
+    private final AtomicIntegerArray firstIdx;
+
+    /** Index of the last event with the given ordinal, plus one. Zero means
+     * that the state has not been stamped yet. **/
+    private final AtomicIntegerArray lastIdx;
+
+    /** Construct a new passport for the given enum class with an initial state.
+     * @param enumClass Class of the event states.
+     * @param initState Initial state (first stamp). Can be null.
+     **/
+    public EnumPassport(Class<E> enumClass, E initState) {
+        this(enumClass, initState, 1 << DEFAULT_FIRST_CHUNK_SHIFT);
+    }
+
+    /** Construct a new passport for the given enum class with an initial state
+     * and the expected number of events, see {@link Passport#Passport(Object, int)}.
+     * @param enumClass      Class of the event states.
+     * @param initState      Initial state (first stamp). Can be null.
+     * @param expectedEvents Expected number of events, must be positive.
+     **/
+    public EnumPassport(Class<E> enumClass, E initState, int expectedEvents) {
+        super(initState, expectedEvents);
+        int n = CONSTANT_COUNT.get(enumClass);
+        firstIdx = new AtomicIntegerArray(n);
+        lastIdx = new AtomicIntegerArray(n);
+        record(0, initState);
+    }
+
+    @Override
+    public EnumPassport<E> stamp(E state, long timestamp) {
+        record(append(state, timestamp), state);
+        return this;
+    }
+
+    /** Update the occurrence tables after the event at {@code idx} has been
+     * written into the log. Since the tables are updated after the event is
+     * stored, an index read from a table always points to a written slot.
+     **/
+    private void record(int idx, E state) {
+        if (state == null) return;
+        int o = state.ordinal(), enc = idx + 1, cur;
+
+        while (((cur = firstIdx.get(o)) == 0 || cur > enc)
+               && !firstIdx.compareAndSet(o, cur, enc));
+        while ((cur = lastIdx.get(o)) < enc
+               && !lastIdx.compareAndSet(o, cur, enc));
+    }
+
+    @Override
+    public Event<E> findEventByState(E state, int startFrom) {
+        int o = state.ordinal();
+        int first = firstIdx.get(o) - 1;
+        if (first < 0) return null;
+        if (first >= startFrom) return eventAt(first);
+
+        int last = lastIdx.get(o) - 1;
+        if (last < startFrom) return null;
+        if (last == startFrom) return eventAt(last);
+        return super.findEventByState(state, startFrom);
+    }
+
+    @Override
+    public long timeBetween(E stateFrom, E stateTo) {
+        int from = firstIdx.get(stateFrom.ordinal()) - 1;
+        if (from < 0) return -1;
+
+        int to = stateTo.ordinal();
+        int toFirst = firstIdx.get(to) - 1;
+        if (toFirst < 0) return -1;
+
+        long fromTime = eventAt(from).timestamp;
+        if (toFirst > from)
+            return eventAt(toFirst).timestamp - fromTime;
+
+        // The first occurrence of stateTo precedes stateFrom. Check whether
+        // there is any occurrence after it before scanning.
+        if (lastIdx.get(to) - 1 <= from) return -1;
+        Event<E> toEvent = super.findEventByState(stateTo, from + 1);
+        return (toEvent == null) ? -1 : (toEvent.timestamp - fromTime);
+    }
+}
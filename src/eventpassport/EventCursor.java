@@ -0,0 +1,62 @@
+package eventpassport;
+
+/** Sequential reader over the published events of a passport. A cursor starts
+ * positioned before its first event; every successful call to {@link #next()}
+ * makes the next event current and exposes it through the getters. Unlike
+ * {@link AbstractPassport#getEvents()}, walking a cursor doesn't allocate an
+ * object per event. Cursors are not thread-safe.
+ *
+ * <pre>{@code
+ * EventCursor<String> c = passport.cursor();
+ * while (c.next())
+ *     System.out.println(c.getState() + " " + c.getTimestamp());
+ * }</pre>
+ * @param <T> Type of the event states.
+ **/
+public abstract class EventCursor<T> {
+
+    /** State of the current event. **/
+    T state;
+
+    /** Timestamp of the current event. **/
+    long timestamp;
+
+    /** Absolute index of the current event in the passport. **/
+    int index;
+
+    EventCursor() {}
+
+    /** Advance to the next event.
+     * @return True if there is a next event, false if the cursor reached the
+     *         end of the passport.
+     **/
+    public abstract boolean next();
+
+    /** Return the state of the current event.
+     * @return Event state.
+     **/
+    public T getState() {
+        return state;
+    }
+
+    /** Return the timestamp of the current event.
+     * @return Event timestamp.
+     **/
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /** Return the absolute index of the current event in the passport.
+     * @return Event index.
+     **/
+    public int getIndex() {
+        return index;
+    }
+
+    /** Return the current event as an Event object.
+     * @return Event object.
+     **/
+    public Event<T> event() {
+        return new Event<>(state, timestamp, index);
+    }
+}
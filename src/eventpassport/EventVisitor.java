@@ -0,0 +1,17 @@
+package eventpassport;
+
+/** Callback for {@link AbstractPassport#forEach(EventVisitor)} that receives
+ * the events of a passport as separate arguments, so that iterating doesn't
+ * allocate an object per event.
+ * @param <T> Type of the event states.
+ **/
+@FunctionalInterface
+public interface EventVisitor<T> {
+
+    /** Receive one event.
+     * @param state     Event state.
+     * @param timestamp Event timestamp.
+     * @param index     Absolute index of the event in the passport.
+     **/
+    void visit(T state, long timestamp, int index);
+}
@@ -0,0 +1,29 @@
+package eventpassport;
+
+/** Memory fences for ordering plain accesses to memory that has no atomic
+ * accessors, like the contents of a MappedByteBuffer.
+ *
+ * Java 8 has no public fence API, so this version relies on how HotSpot
+ * compiles volatile accesses: a volatile store is followed by a full fence,
+ * and a volatile load is not reordered with the loads after it. The JAR also
+ * contains a Java 9+ version of this class built from {@code src-java9} that
+ * uses the VarHandle fences; any change here must be mirrored there.
+ **/
+final class Fences {
+
+    private static volatile int fence;
+
+    private Fences() {}
+
+    /** Keep the loads and stores before this call from being reordered with
+     * the stores after it. **/
+    static void release() {
+        fence = 0;
+    }
+
+    /** Keep the loads before this call from being reordered with the loads
+     * and stores after it. **/
+    static void acquire() {
+        int ignored = fence;
+    }
+}
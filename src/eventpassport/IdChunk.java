@@ -0,0 +1,49 @@
+package eventpassport;
+
+import java.util.concurrent.atomic.*;
+
+/** A chunk of events for {@link InternedPassport} that stores int state ids
+ * instead of state references. Ids are stored shifted by one, so that zero
+ * means an unwritten slot. Chunks are addressed the same way as in
+ * {@link Chunk}.
+ **/
+class IdChunk implements ChunkedPassport.Slots {
+
+    /** Array of state ids plus one. An id is written after its timestamp with
+     * release semantics, so a non-zero value means that the whole slot has
+     * been written.
+     **/
+    final AtomicIntegerArray eventIds;
+
+    /** Array of timestamps for the stamped events. **/
+    final AtomicLongArray eventTimestamps;
+
+    /** Construct a new chunk that can hold {@code size} number of stamps. **/
+    IdChunk(int size) {
+        this.eventIds = new AtomicIntegerArray(size);
+        this.eventTimestamps = new AtomicLongArray(size);
+    }
+
+    @Override
+    public int size() {
+        return eventIds.length();
+    }
+
+    @Override
+    public boolean isPublished(int idx) {
+        return eventIds.get(idx) != 0;
+    }
+
+    int getId(int idx) {
+        return eventIds.get(idx) - 1;
+    }
+
+    long getTimestamp(int idx) {
+        return eventTimestamps.get(idx);
+    }
+
+    void put(int idx, int id, long timestamp) {
+        eventTimestamps.lazySet(idx, timestamp);
+        eventIds.lazySet(idx, id + 1);
+    }
+}
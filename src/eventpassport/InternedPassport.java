@@ -0,0 +1,133 @@
+package eventpassport;
+
+/** A thread-safe passport that stores states as int ids assigned by a
+ * {@link StateRegistry} instead of object references. Queries look up the ids
+ * of the requested states once and then compare ids with {@code ==}, without
+ * calling {@code equals} on every event. This is most useful for states with
+ * expensive equality, like Clojure keywords or strings.
+ *
+ * Apart from the storage, the implementation is shared with
+ * {@link Passport}: chunks of doubling size in a fixed directory, and a
+ * published-count watermark for readers.
+ * @param <T> Type of the event states that could be stamped into the passport.
+ **/
+public class InternedPassport<T> extends ChunkedPassport<T, IdChunk> {
+
+    private static final int FIRST_CHUNK_SHIFT = 3;
+
+    private final StateRegistry<T> registry;
+
+    /** Construct a new passport with an initial state.
+     * @param registry  Registry that maps states to ids. Usually shared by all
+     *                  passports of the same kind.
+     * @param initState Initial state (first stamp). Can be null.
+     **/
+    public InternedPassport(StateRegistry<T> registry, T initState) {
+        super(FIRST_CHUNK_SHIFT, false);
+        this.registry = registry;
+        chunks.set(0, new IdChunk(1 << FIRST_CHUNK_SHIFT));
+        append(initState, System.nanoTime());
+    }
+
+    /** Return the registry used by this passport.
+     * @return Registry object.
+     **/
+    public StateRegistry<T> getRegistry() {
+        return registry;
+    }
+
+    @Override
+    IdChunk newChunk(int size) {
+        return new IdChunk(size);
+    }
+
+    @Override
+    public InternedPassport<T> stamp(T state) {
+        return stamp(state, System.nanoTime());
+    }
+
+    @Override
+    public InternedPassport<T> stamp(T state, long timestamp) {
+        append(state, timestamp);
+        return this;
+    }
+
+    private void append(T state, long timestamp) {
+        int id = registry.idOf(state);
+        int idx = stampCount.getAndIncrement();
+        int k = Chunk.chunkNumber(idx, FIRST_CHUNK_SHIFT);
+        chunk(k).put(Chunk.offsetInChunk(idx, k, FIRST_CHUNK_SHIFT), id, timestamp);
+    }
+
+    /** Return the index of the first event with the given id, starting from
+     * {@code startFrom} and ending before {@code end}, or -1 if not found. **/
+    private int indexOf(int id, int startFrom, int end) {
+        if (startFrom >= end) return -1;
+        int k = Chunk.chunkNumber(startFrom, FIRST_CHUNK_SHIFT);
+        int ci = Chunk.offsetInChunk(startFrom, k, FIRST_CHUNK_SHIFT);
+        IdChunk chunk = peekChunk(k);
+        for (int i = startFrom; i < end; i++, ci++) {
+            if (ci == chunk.size()) {
+                ci = 0;
+                chunk = peekChunk(++k);
+            }
+            if (chunk.getId(ci) == id)
+                return i;
+        }
+        return -1;
+    }
+
+    private long timestampAt(int idx) {
+        int k = Chunk.chunkNumber(idx, FIRST_CHUNK_SHIFT);
+        return peekChunk(k).getTimestamp(Chunk.offsetInChunk(idx, k, FIRST_CHUNK_SHIFT));
+    }
+
+    @Override
+    public Event<T> findEventByState(T state, int startFrom) {
+        int id = registry.lookup(state);
+        if (id < 0) return null;
+        int idx = indexOf(id, Math.max(startFrom, 0), publishedCount());
+        return (idx < 0) ? null : new Event<>(registry.stateOf(id), timestampAt(idx), idx);
+    }
+
+    @Override
+    public long timeBetween(T stateFrom, T stateTo) {
+        int fromId = registry.lookup(stateFrom), toId = registry.lookup(stateTo);
+        if (fromId < 0 || toId < 0) return -1;
+
+        int end = publishedCount();
+        int from = indexOf(fromId, 0, end);
+        if (from < 0) return -1;
+        int to = indexOf(toId, from + 1, end);
+        return (to < 0) ? -1 : (timestampAt(to) - timestampAt(from));
+    }
+
+    @Override
+    public EventCursor<T> cursor(int startFrom) {
+        final int end = publishedCount();
+        EventCursor<T> c = new EventCursor<T>() {
+                IdChunk chunk;
+                int k, ci;
+
+                @Override
+                public boolean next() {
+                    if (index + 1 >= end)
+                        return false;
+                    index++;
+                    if (chunk == null) {
+                        k = Chunk.chunkNumber(index, FIRST_CHUNK_SHIFT);
+                        ci = Chunk.offsetInChunk(index, k, FIRST_CHUNK_SHIFT);
+                        chunk = peekChunk(k);
+                    } else if (++ci == chunk.size()) {
+                        ci = 0;
+                        chunk = peekChunk(++k);
+                    }
+                    state = registry.stateOf(chunk.getId(ci));
+                    timestamp = chunk.getTimestamp(ci);
+                    return true;
+                }
+            };
+        c.index = Math.max(startFrom, 0) - 1;
+        return c;
+    }
+}
@@ -0,0 +1,164 @@
+package eventpassport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+import java.util.function.Function;
+
+/** Reads the records of a {@link PassportJournal} back, oldest segment first,
+ * as {@link DecodedPassport} views over the mapped segment files. It can read
+ * the journal of a crashed process, or of a running one, in which case the
+ * records appended after reaching the current segment may be missed.
+ *
+ * The states are rebuilt from the dictionary records of each segment, with
+ * a function that parses the {@code toString} of a state, so the reader
+ * doesn't need the registry of the writing process. Each segment gets its own
+ * {@link StateRegistry}, since segments of different runs can number the
+ * states differently.
+ *
+ * <pre>{@code
+ * JournalReader<String> r = new JournalReader<>(dir, Function.identity());
+ * while (r.next())
+ *     if (r.getKind() == PassportJournal.FINISHED)
+ *         System.out.println(r.getPassport());
+ * }</pre>
+ *
+ * Within a segment, an unfinished record (a writer died while copying it) is
+ * skipped if its length was written, otherwise the rest of the segment is
+ * skipped, as is the rest after a corrupted record.
+ * @param <T> Type of the event states.
+ **/
+public class JournalReader<T> {
+
+    private final Function<String, T> parseState;
+    private final List<Path> segments;
+    private PassportCodec<T> codec;
+    private int segmentIndex = -1;
+    private Path segment;
+    private ByteBuffer buffer;
+    private DecodedPassport<T> passport;
+    private byte kind;
+
+    /** Construct a reader of the segments currently in the directory.
+     * @param  dir         Journal directory.
+     * @param  parseState  Function that returns the state with the given
+     *                     {@code toString}.
+     * @throws IOException If the directory can't be listed.
+     **/
+    public JournalReader(Path dir, Function<String, T> parseState) throws IOException {
+        this.parseState = parseState;
+        this.segments = PassportJournal.listSegments(dir);
+    }
+
+    /** Move to the next record.
+     * @return             True if there is one, false at the end of the journal.
+     * @throws IOException If a segment can't be mapped.
+     **/
+    public boolean next() throws IOException {
+        while (true) {
+            if (buffer != null && nextInSegment())
+                return true;
+            if (segmentIndex + 1 >= segments.size()) {
+                passport = null;
+                kind = 0;
+                return false;
+            }
+            segment = segments.get(++segmentIndex);
+            buffer = map(segment);
+            codec = new PassportCodec<>(new StateRegistry<T>());
+        }
+    }
+
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+
+    /** Move to the next record of the current segment, or return false if
+     * there is none. **/
+    private boolean nextInSegment() {
+        while (buffer.remaining() >= PassportJournal.HEADER_SIZE) {
+            int pos = buffer.position();
+            byte k = buffer.get(pos);
+            int length = buffer.getInt(pos + 2);
+            if (length < 0 || length > buffer.remaining() - PassportJournal.HEADER_SIZE
+                || (k == 0 && length == 0))
+                break;
+            int end = pos + PassportJournal.HEADER_SIZE + length;
+            if (k == 0) {
+                buffer.position(end);
+                continue;
+            }
+            // Pairs with the release fence before the writer stores the kind.
+            Fences.acquire();
+            if (k == PassportJournal.DICTIONARY) {
+                try {
+                    readDictionary(pos, end);
+                } catch (RuntimeException e) {
+                    break;
+                }
+                buffer.position(end);
+                continue;
+            }
+            if (k != PassportJournal.FINISHED && k != PassportJournal.SNAPSHOT)
+                break;
+            buffer.position(pos + 1);
+            try {
+                passport = codec.decode(buffer);
+            } catch (RuntimeException e) {
+                break;
+            }
+            kind = k;
+            return true;
+        }
+        buffer = null;
+        return false;
+    }
+
+    /** Define the states of the dictionary record between the given offsets
+     * in the registry of the segment. **/
+    private void readDictionary(int pos, int end) {
+        byte version = buffer.get(pos + 1);
+        if (version != PassportCodec.VERSION)
+            throw new IllegalArgumentException("Unknown dictionary format version: " + version);
+        ByteBuffer b = buffer.duplicate();
+        b.limit(end).position(pos + PassportJournal.HEADER_SIZE);
+        long id = PassportCodec.getVarLong(b);
+        while (b.hasRemaining()) {
+            long length = PassportCodec.getVarLong(b);
+            if (id <= 0 || id >= Integer.MAX_VALUE || length < 0 || length > b.remaining())
+                throw new IllegalArgumentException("Malformed dictionary");
+            byte[] name = new byte[(int)length];
+            b.get(name);
+            T state = parseState.apply(new String(name, StandardCharsets.UTF_8));
+            codec.getRegistry().define((int)id++, state);
+        }
+    }
+
+    /** Return the passport of the current record. It stays valid after moving
+     * to the next record.
+     * @return Decoded passport.
+     **/
+    public DecodedPassport<T> getPassport() {
+        return passport;
+    }
+
+    /** Return the kind of the current record.
+     * @return {@link PassportJournal#FINISHED} or {@link PassportJournal#SNAPSHOT}.
+     **/
+    public byte getKind() {
+        return kind;
+    }
+
+    /** Return the segment file of the current record.
+     * @return Segment path.
+     **/
+    public Path getSegment() {
+        return segment;
+    }
+}
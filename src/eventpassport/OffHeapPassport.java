@@ -0,0 +1,229 @@
+package eventpassport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.*;
+
+/** A thread-safe passport that keeps its events off the Java heap, in segments
+ * of an {@link OffHeapSlab}. States are stored as int ids from a
+ * {@link StateRegistry}. A passport object holds no references to its events,
+ * so millions of in-flight passports add almost nothing for the GC to trace.
+ * The passport must be released with {@link #free()} when it's no longer
+ * needed; otherwise, its segments are never returned to the slab.
+ *
+ * Stamping doesn't wait for other threads. When the slab runs out of segments,
+ * stamps are dropped and counted in {@link #getDroppedCount()}. After the
+ * first dropped stamp the passport stops growing: all later stamps are dropped
+ * too, even if the slab has free segments again, and readers never look past
+ * the first dropped event.
+ *
+ * Writes into a ByteBuffer are not ordered by themselves, so readers only see
+ * events up to the last moment when no stamps were in progress: every stamp
+ * increments a second counter after it has written the event, and once the
+ * two counters are observed equal, all preceding events are visible.
+ * @param <T> Type of the event states that could be stamped into the passport.
+ **/
+public class OffHeapPassport<T> extends AbstractPassport<T> {
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<OffHeapPassport> STAMP_COUNT =
+        AtomicIntegerFieldUpdater.newUpdater(OffHeapPassport.class, "stampCount");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<OffHeapPassport> WRITTEN_COUNT =
+        AtomicIntegerFieldUpdater.newUpdater(OffHeapPassport.class, "writtenCount");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<OffHeapPassport> STABLE_COUNT =
+        AtomicIntegerFieldUpdater.newUpdater(OffHeapPassport.class, "stableCount");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<OffHeapPassport> DROPPED_COUNT =
+        AtomicIntegerFieldUpdater.newUpdater(OffHeapPassport.class, "droppedCount");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<OffHeapPassport> FIRST_DROPPED =
+        AtomicIntegerFieldUpdater.newUpdater(OffHeapPassport.class, "firstDropped");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<OffHeapPassport> TAIL =
+        AtomicLongFieldUpdater.newUpdater(OffHeapPassport.class, "tail");
+
+    /** Value of the stamp counter after the passport was freed. **/
+    private static final int FREED = Integer.MIN_VALUE;
+
+    private final OffHeapSlab slab;
+    private final StateRegistry<T> registry;
+    /** First segment of the passport. The following segments are linked
+     * through {@code slab.next}. **/
+    private final int firstSegment;
+
+    private volatile int stampCount;
+    /** Number of stamps that have finished writing their events. **/
+    private volatile int writtenCount;
+    /** Number of events known to be visible to readers. **/
+    private volatile int stableCount;
+    private volatile int droppedCount;
+    /** Index of the first dropped stamp, or MAX_VALUE if none was dropped.
+     * Set before the dropping stamp increments the written counter, so
+     * readers that see the counters equal see it too. **/
+    private volatile int firstDropped = Integer.MAX_VALUE;
+    /** Last segment known to be in the chain and its number, packed as
+     * {@code number << 32 | segment}, so that stamping doesn't walk the whole
+     * chain. **/
+    private volatile long tail;
+
+    /** Construct a new passport with an initial state.
+     * @param slab      Slab to store the events in.
+     * @param registry  Registry that maps states to ids.
+     * @param initState Initial state (first stamp). Can be null.
+     * @throws IllegalStateException if the slab has no free segments.
+     **/
+    public OffHeapPassport(OffHeapSlab slab, StateRegistry<T> registry, T initState) {
+        this.slab = slab;
+        this.registry = registry;
+        firstSegment = slab.allocate();
+        if (firstSegment == OffHeapSlab.NONE)
+            throw new IllegalStateException("Off-heap slab is exhausted");
+        tail = firstSegment;
+        write(initState, System.nanoTime());
+    }
+
+    @Override
+    public OffHeapPassport<T> stamp(T state) {
+        return stamp(state, System.nanoTime());
+    }
+
+    @Override
+    public OffHeapPassport<T> stamp(T state, long timestamp) {
+        write(state, timestamp);
+        return this;
+    }
+
+    private void write(T state, long timestamp) {
+        int id = registry.idOf(state);
+        int idx = STAMP_COUNT.getAndIncrement(this);
+        if (idx < 0)
+            throw new IllegalStateException("Passport is used after it was freed");
+
+        int seg = idx < firstDropped ? segment(idx / slab.segmentEvents, true) : OffHeapSlab.NONE;
+        if (seg == OffHeapSlab.NONE) {
+            int first;
+            while (idx < (first = firstDropped) && !FIRST_DROPPED.compareAndSet(this, first, idx));
+            DROPPED_COUNT.getAndIncrement(this);
+        } else {
+            int i = idx % slab.segmentEvents;
+            slab.buffer.putLong(slab.timestampOffset(seg, i), timestamp);
+            slab.buffer.putInt(slab.idOffset(seg, i), id);
+        }
+        // Publishes the write to the readers that observe the counters equal.
+        WRITTEN_COUNT.getAndIncrement(this);
+    }
+
+    /** Return the segment with the given number in the passport's chain, or
+     * {@code NONE} if it doesn't exist and can't be allocated. Segments can be
+     * allocated in the middle of the chain after a stamp was dropped, but
+     * readers never look at events after the first dropped one, so they never
+     * see the stale contents of such segments.
+     * @param  k        Number of the segment in the chain.
+     * @param  allocate Whether to allocate missing segments.
+     * @return          Segment in the slab.
+     **/
+    private int segment(int k, boolean allocate) {
+        long t = tail;
+        int tailK = (int)(t >>> 32);
+        int seg;
+        int n;
+        if (tailK <= k) {
+            seg = (int)t;
+            n = k - tailK;
+        } else {
+            seg = firstSegment;
+            n = k;
+        }
+        for (; n > 0; n--) {
+            int nextSeg = slab.next.get(seg);
+            if (nextSeg == OffHeapSlab.NONE) {
+                if (!allocate) return OffHeapSlab.NONE;
+                int newSeg = slab.allocate();
+                if (newSeg == OffHeapSlab.NONE) return OffHeapSlab.NONE;
+                if (slab.next.compareAndSet(seg, OffHeapSlab.NONE, newSeg)) {
+                    nextSeg = newSeg;
+                } else {
+                    slab.free(newSeg);
+                    nextSeg = slab.next.get(seg);
+                }
+            }
+            seg = nextSeg;
+        }
+        if (k > tailK)
+            TAIL.compareAndSet(this, t, ((long)k << 32) | seg);
+        return seg;
+    }
+
+    /** Return the number of stamps dropped because the slab was exhausted.
+     * @return Number of dropped stamps.
+     **/
+    public int getDroppedCount() {
+        return droppedCount;
+    }
+
+    /** Return the segments of this passport to the slab. The passport can't be
+     * used after this call, and no other thread may use it concurrently.
+     **/
+    public void free() {
+        if (STAMP_COUNT.getAndSet(this, FREED) < 0)
+            throw new IllegalStateException("Passport is already freed");
+        int seg = firstSegment;
+        while (seg != OffHeapSlab.NONE) {
+            int nextSeg = slab.next.get(seg);
+            slab.free(seg);
+            seg = nextSeg;
+        }
+    }
+
+    /** Return the number of events whose writes are visible to this thread. **/
+    private int visibleCount() {
+        // Reading the written counter first guarantees that if it equals the
+        // stamp counter read after it, no stamps were in progress when it was
+        // read.
+        int written = writtenCount;
+        int stamped = stampCount;
+        if (stamped < 0)
+            throw new IllegalStateException("Passport is used after it was freed");
+        int stable = stableCount;
+        if (written == stamped && written > stable) {
+            written = Math.min(written, firstDropped);
+            STABLE_COUNT.compareAndSet(this, stable, written);
+            return written;
+        }
+        return stable;
+    }
+
+    @Override
+    public EventCursor<T> cursor(int startFrom) {
+        final int end = visibleCount();
+        final ByteBuffer buffer = slab.buffer;
+        final int segmentEvents = slab.segmentEvents;
+
+        EventCursor<T> c = new EventCursor<T>() {
+                int seg = OffHeapSlab.NONE, i;
+
+                @Override
+                public boolean next() {
+                    if (index + 1 < end) {
+                        index++;
+                        if (seg == OffHeapSlab.NONE) {
+                            seg = segment(index / segmentEvents, false);
+                            i = index % segmentEvents;
+                        } else if (++i == segmentEvents) {
+                            seg = slab.next.get(seg);
+                            i = 0;
+                        }
+                        if (seg == OffHeapSlab.NONE) // Dropped stamps.
+                            return false;
+                        state = registry.stateOf(buffer.getInt(slab.idOffset(seg, i)));
+                        timestamp = buffer.getLong(slab.timestampOffset(seg, i));
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        c.index = Math.max(startFrom, 0) - 1;
+        return c;
+    }
+}
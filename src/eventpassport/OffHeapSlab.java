@@ -0,0 +1,101 @@
+package eventpassport;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.*;
+
+/** A region of off-heap memory shared by many {@link OffHeapPassport} objects.
+ * The region is a single direct ByteBuffer divided into segments of equal
+ * size. Each segment holds a fixed number of events as a struct of arrays: all
+ * timestamps first, then all state ids.
+ *
+ * Free segments form a lock-free stack. The links of that stack, as well as
+ * the links between the segments of one passport, are stored in a single
+ * AtomicIntegerArray, so the slab adds no per-passport heap objects.
+ **/
+public class OffHeapSlab {
+
+    static final int NONE = -1;
+
+    final ByteBuffer buffer;
+    final int segmentEvents;
+    private final int segmentBytes;
+
+    /** For free segments: the next free segment. For used segments: the next
+     * segment of the same passport. **/
+    final AtomicIntegerArray next;
+
+    /** Top of the free stack in the low 32 bits and a modification tag in the
+     * high 32 bits that prevents the ABA problem. **/
+    private final AtomicLong freeHead;
+    private final AtomicInteger freeCount;
+
+    /** Allocate a new slab.
+     * @param segmentEvents Number of events in one segment.
+     * @param segmentCount  Number of segments in the slab.
+     **/
+    public OffHeapSlab(int segmentEvents, int segmentCount) {
+        if (segmentEvents < 1 || segmentCount < 1)
+            throw new IllegalArgumentException("Segment size and count must be positive");
+        long bytes = (long)segmentEvents * 12 * segmentCount;
+        if (bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Slab can't be larger than 2GB: " + bytes);
+
+        this.segmentEvents = segmentEvents;
+        this.segmentBytes = segmentEvents * 12;
+        this.buffer = ByteBuffer.allocateDirect((int)bytes).order(ByteOrder.nativeOrder());
+        this.next = new AtomicIntegerArray(segmentCount);
+        for (int i = 0; i < segmentCount; i++)
+            next.set(i, (i + 1 < segmentCount) ? i + 1 : NONE);
+        this.freeHead = new AtomicLong(0);
+        this.freeCount = new AtomicInteger(segmentCount);
+    }
+
+    /** Return the number of segments that are not used by any passport.
+     * @return Number of free segments.
+     **/
+    public int freeSegments() {
+        return freeCount.get();
+    }
+
+    /** Take a segment from the free stack.
+     * @return Segment number, or {@code NONE} if the slab is exhausted.
+     **/
+    int allocate() {
+        while (true) {
+            long head = freeHead.get();
+            int seg = (int)head;
+            if (seg == NONE)
+                return NONE;
+            long newHead = ((head >>> 32) + 1 << 32) | (next.get(seg) & 0xFFFFFFFFL);
+            if (freeHead.compareAndSet(head, newHead)) {
+                next.set(seg, NONE);
+                freeCount.decrementAndGet();
+                return seg;
+            }
+        }
+    }
+
+    /** Put a segment back to the free stack.
+     * @param seg Segment number.
+     **/
+    void free(int seg) {
+        while (true) {
+            long head = freeHead.get();
+            next.set(seg, (int)head);
+            long newHead = ((head >>> 32) + 1 << 32) | (seg & 0xFFFFFFFFL);
+            if (freeHead.compareAndSet(head, newHead)) {
+                freeCount.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    int timestampOffset(int seg, int i) {
+        return seg * segmentBytes + i * 8;
+    }
+
+    int idOffset(int seg, int i) {
+        return seg * segmentBytes + segmentEvents * 8 + i * 4;
+    }
+}
@@ -0,0 +1,23 @@
+package eventpassport;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** AtomicInteger followed by enough unused fields to fill two cache lines, so
+ * that the objects allocated right after it don't share a cache line with the
+ * counter. Java gives no control over the object placement, and the fields
+ * can only be added after the value, so objects allocated right before the
+ * counter should be padded too or rarely written. Nothing is guaranteed after
+ * the GC moves the objects, padding only makes false sharing unlikely.
+ **/
+@SuppressWarnings("unused")
+class PaddedAtomicInteger extends AtomicInteger {
+
+    private static final long serialVersionUID = 1L;
+
+    private long p1, p2, p3, p4, p5, p6, p7, p8;
+    private long p9, p10, p11, p12, p13, p14, p15;
+
+    PaddedAtomicInteger(int initialValue) {
+        super(initialValue);
+    }
+}
@@ -1,8 +1,8 @@
 package eventpassport;
 
-import java.util.concurrent.atomic.*;
-import java.util.*;
-import java.time.Instant;
+import java.util.Spliterator;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
 /** This is a wait-free thread-safe implementation of the Passport pattern where
  * one can stamp arbitrary events into the passport, so that later the timespans
@@ -10,87 +10,270 @@ import java.time.Instant;
  * href="http://web.archive.org/web/20190729153806/https://eng.fitbit.com/the-passport-a-tool-for-better-metrics/">Passport:
  * A Tool For Better Metrics</a> .
  *
- * This implementation performs O(log2N) insertions (stamps) and O(log2n)
+ * Events are stored in chunks of doubling size, referenced from a small
+ * fixed-size directory. The location of any event is computed from its index,
+ * so this implementation performs O(1) insertions (stamps) and O(N)
  * calculations of time durations.
  * @param <T> Type of the event states that could be stamped into the passport.
  **/
-public class Passport<T> {
+public class Passport<T> extends ChunkedPassport<T, Chunk<T>> {
 
-    private static final int FIRST_CHUNK_SIZE = 8;
+    /** Log2 of the first chunk size when no capacity hint is given. **/
+    static final int DEFAULT_FIRST_CHUNK_SHIFT = 3;
+    private static final int MAX_FIRST_CHUNK_SHIFT = 30;
+    /** Value of the stamp counter in a released passport. Stamps keep it
+     * negative for billions of increments. **/
+    private static final int POISONED = Integer.MIN_VALUE;
 
-    private final Chunk<T> firstChunk = new Chunk<T>(FIRST_CHUNK_SIZE);
-    private final AtomicInteger stampCount = new AtomicInteger(0);
-    private final long issuedTimeMs;
+    private final boolean padded;
 
     /** Construct a new passport with an initial state.
      * @param initState Initial state (first stamp). Can be null.
      **/
     public Passport(T initState) {
+        this(DEFAULT_FIRST_CHUNK_SHIFT, false);
+        reissue(initState);
+    }
+
+    /** Construct a new passport with an initial state, optionally with the
+     * padded memory layout. In a padded passport, the stamp counter and the
+     * reader watermark occupy separate cache lines, and the chunk arrays are
+     * padded at both ends. This keeps readers that poll the passport from
+     * slowing down the stamping threads, and the stamping threads from
+     * invalidating the lines that hold the chunk directory and the array
+     * headers. Consecutive events still share cache lines, see
+     * {@link StripedPassport} for spreading the stamping threads apart. A
+     * padded passport takes ~400 more bytes per chunk.
+     * @param initState Initial state (first stamp). Can be null.
+     * @param padded    Whether to use the padded layout.
+     **/
+    public Passport(T initState, boolean padded) {
+        this(DEFAULT_FIRST_CHUNK_SHIFT, padded);
+        reissue(initState);
+    }
+
+    /** Construct a new passport with an initial state and the expected number
+     * of events, including the initial one. The first chunk is sized to hold
+     * that many events (rounded up to a power of two), so a passport that
+     * stays within the hint never allocates more chunks and its queries never
+     * leave the first chunk. Exceeding the hint is allowed.
+     * @param initState      Initial state (first stamp). Can be null.
+     * @param expectedEvents Expected number of events, must be positive.
+     **/
+    public Passport(T initState, int expectedEvents) {
+        this(initState, expectedEvents, false);
+    }
+
+    /** Construct a new passport with an initial state, the expected number of
+     * events and optionally with the padded memory layout. See
+     * {@link #Passport(Object, int)} and {@link #Passport(Object, boolean)}.
+     * @param initState      Initial state (first stamp). Can be null.
+     * @param expectedEvents Expected number of events, must be positive.
+     * @param padded         Whether to use the padded layout.
+     **/
+    public Passport(T initState, int expectedEvents, boolean padded) {
+        this(firstChunkShift(expectedEvents), padded);
+        reissue(initState);
+    }
+
+    /** Construct an empty passport without the initial event. Used for the
+     * lanes of {@link StripedPassport}.
+     * @param firstShift Log2 of the first chunk size.
+     * @param padded     Whether to use the padded layout.
+     **/
+    Passport(int firstShift, boolean padded) {
+        super(firstShift, padded);
+        this.padded = padded;
+        chunks.set(0, new Chunk<T>(1 << firstShift, padded));
+    }
+
+    @Override
+    Chunk<T> newChunk(int size) {
+        return new Chunk<>(size, padded);
+    }
+
+    /** Return log2 of the smallest first chunk that fits the given number of
+     * events.
+     * @param  expectedEvents Expected number of events, must be positive.
+     * @return                First chunk shift.
+     **/
+    static int firstChunkShift(int expectedEvents) {
+        if (expectedEvents <= 0)
+            throw new IllegalArgumentException("expectedEvents must be positive: " + expectedEvents);
+        return Math.min(32 - Integer.numberOfLeadingZeros(expectedEvents - 1), MAX_FIRST_CHUNK_SHIFT);
+    }
+
+    /** Return the number of events that fit into the first chunk.
+     * @return First chunk size.
+     **/
+    int firstChunkSize() {
+        return 1 << firstShift;
+    }
+
+    /** Record the initial event into an empty passport.
+     * @param initState Initial state (first stamp). Can be null.
+     **/
+    void reissue(T initState) {
         issuedTimeMs = System.currentTimeMillis();
-        firstChunk.put(0, initState, System.nanoTime());
-        stampCount.getAndIncrement();
+        chunks.get(0).put(0, initState, System.nanoTime());
+        publishedCount.lazySet(1);
+        stampCount.set(1);
+    }
+
+    /** Clear all events so that the passport can be reissued. Chunks that end
+     * beyond {@code retainedCapacity} events are released to the GC, the
+     * rest are kept for reuse. If {@code poison} is true, any later stamp or
+     * query throws IllegalStateException until the passport is reissued. The
+     * caller must ensure that no other thread uses the passport concurrently.
+     * @param retainedCapacity Number of event slots to keep allocated.
+     * @param poison           Whether to detect use of the cleared passport.
+     **/
+    void recycle(int retainedCapacity, boolean poison) {
+        int n = stampCount.get();
+        for (int k = 0, start = 0; k < chunks.length(); k++) {
+            Chunk<T> chunk = chunks.get(k);
+            if (chunk == null) break;
+            int end = start + chunk.size();
+            if (k > 0 && end > retainedCapacity) {
+                chunks.set(k, null);
+            } else {
+                // States must be cleared since null marks unwritten slots.
+                for (int i = 0; i < chunk.size() && start + i < n; i++)
+                    chunk.clear(i);
+            }
+            start = end;
+        }
+        publishedCount.set(0);
+        stampCount.set(poison ? POISONED : 0);
     }
 
-    /** Record an event with the provided state into the passport. Timestamp
-     * will be obtained from {@code System.nanoTime}.
-     * @param  state Event state.
-     * @return       This object (for fluent interface).
+    /** Throw if the passport has been poisoned by {@code recycle}.
+     * @param count Current value of the stamp counter.
      **/
-    public Passport stamp(T state) {
+    private static void checkNotReleased(int count) {
+        if (count < 0)
+            throw new IllegalStateException("Passport is used after it was released to the pool");
+    }
+
+    @Override
+    public Passport<T> stamp(T state) {
         return stamp(state, System.nanoTime());
     }
 
-    /** Record an event with the provided state and timestamp into the passport.
+    @Override
+    public Passport<T> stamp(T state, long timestamp) {
+        append(state, timestamp);
+        return this;
+    }
+
+    /** Record an event into the next free slot and return the absolute index
+     * that the event was stored at. Subclasses use this to maintain auxiliary
+     * indexes alongside the chunked log.
      * @param  state     Event state.
      * @param  timestamp Event timestamp.
-     * @return           This object (for fluent interface).
+     * @return           Index of the recorded event.
      **/
-    public Passport stamp(T state, long timestamp) {
+    int append(T state, long timestamp) {
         int idx = stampCount.getAndIncrement();
+        checkNotReleased(idx);
+        int k = Chunk.chunkNumber(idx, firstShift);
+        chunk(k).put(Chunk.offsetInChunk(idx, k, firstShift), state, timestamp);
+        return idx;
+    }
 
-        // First, we have to chase down the chunk where we should put the state
-        // and timestamp for our index.
-        Chunk<T> chunk = firstChunk;
-        while (idx >= chunk.size()) {
-            idx -= chunk.size();
-            chunk = chunk.getNext();
-        }
+    /** Try to record an event like {@code append}, but with a single CAS on
+     * the stamp counter instead of an unconditional increment. Failure means
+     * that another thread is stamping into the passport at the same time.
+     * @param  state     Event state.
+     * @param  timestamp Event timestamp.
+     * @return           True if the event was recorded.
+     **/
+    boolean tryAppend(T state, long timestamp) {
+        int idx = stampCount.get();
+        checkNotReleased(idx);
+        if (!stampCount.compareAndSet(idx, idx + 1))
+            return false;
+        int k = Chunk.chunkNumber(idx, firstShift);
+        chunk(k).put(Chunk.offsetInChunk(idx, k, firstShift), state, timestamp);
+        return true;
+    }
 
-        chunk.put(idx, state, timestamp);
-        return this;
+    /** Return the number of leading events that are completely written.
+     * @return Number of readable events.
+     * @throws IllegalStateException If the passport has been released.
+     **/
+    @Override
+    int publishedCount() {
+        int n = super.publishedCount();
+        checkNotReleased(n);
+        return n;
     }
 
-    /** Find and return the first event in the passport that has the state equal
-     * to the provided state. Return null if the event was not found.
-     * @param  state State to search for.
-     * @return       Matched event or {@code null} if not found.
+    /** Return the event stored at the given absolute index. The caller must
+     * ensure that the event at this index has been completely written.
+     * @param  idx Absolute index of the event.
+     * @return     Event object.
      **/
-    public Event<T> findEventByState(T state) {
-        return findEventByState(state, 0);
+    Event<T> eventAt(int idx) {
+        int k = Chunk.chunkNumber(idx, firstShift);
+        int ci = Chunk.offsetInChunk(idx, k, firstShift);
+        Chunk<T> chunk = peekChunk(k);
+        return new Event<>(chunk.getState(ci), chunk.getTimestamp(ci), idx);
     }
 
-    /** Find and return the index of the event in the passport that has the
-     * state equal to the provided state. Begins searching from the provided
-     * starting index. Return -1 if the event was not found.
-     * @param  state     State to search for.
-     * @param  startFrom Starting index to search from.
-     * @return           Index of the found event.
+    @Override
+    public Event<T> lastEvent() {
+        int n = publishedCount();
+        return n == 0 ? null : eventAt(n - 1);
+    }
+
+    @Override
+    public EventCursor<T> cursor(int startFrom) {
+        return new PassportCursor<T>().reset(this, startFrom);
+    }
+
+    @Override
+    public void forEach(EventVisitor<? super T> visitor) {
+        int total = publishedCount();
+        Chunk<T> chunk = peekChunk(0);
+        for (int i = 0, k = 0, ci = 0; i < total; i++, ci++) {
+            if (ci == chunk.size()) {
+                ci = 0;
+                chunk = peekChunk(++k);
+            }
+            visitor.visit(chunk.getState(ci), chunk.getTimestamp(ci), i);
+        }
+    }
+
+    /** Return a spliterator over the published events that splits at the
+     * chunk boundaries.
+     * @return Spliterator object.
      **/
+    @Override
+    public Spliterator<Event<T>> spliterator() {
+        return new PassportSpliterator.Events<>(this, 0, publishedCount());
+    }
+
+    @Override
+    public LongStream timestamps(T state) {
+        return StreamSupport.longStream(
+            new PassportSpliterator.Timestamps<>(this, state, 0, publishedCount()), false);
+    }
+
+    @Override
     public Event<T> findEventByState(T state, int startFrom) {
-        int total = stampCount.get();
-        Chunk<T> chunk = firstChunk;
-        int skip = startFrom;
+        int total = publishedCount();
+        if (startFrom >= total)
+            return null;
 
-        while (skip >= chunk.size()) {
-            skip -= chunk.size();
-            chunk = chunk.getNext();
-        }
+        int k = Chunk.chunkNumber(startFrom, firstShift);
+        int ci = Chunk.offsetInChunk(startFrom, k, firstShift);
+        Chunk<T> chunk = peekChunk(k);
 
-        int i = startFrom, ci = skip;
-        for (; i < total; i++, ci++) {
+        for (int i = startFrom; i < total; i++, ci++) {
             if (ci == chunk.size()) {
                 ci = 0;
-                chunk = chunk.getNext();
+                chunk = peekChunk(++k);
             }
             T currState = chunk.getState(ci);
             if (state.equals(currState)) {
@@ -101,25 +284,17 @@ public class Passport<T> {
         return null;
     }
 
-    /** Calculate a period in nanoseconds between two given states, or -1 if
-     * either of the states was not found in the passport (or they are not one
-     * after the other). Note that if the same states are recorded multiple
-     * times in the passport, this method will return the period between first
-     * encountered states.
-     * @param  stateFrom Event state for the start of the period.
-     * @param  stateTo   Event state for the end of the period.
-     * @return Period duration in nanoseconds or -1 if such period does not
-     * exist. **/
+    @Override
     public long timeBetween(T stateFrom, T stateTo) {
-        int remainingStampCount = stampCount.get();
+        int remainingStampCount = publishedCount();
 
-        int idxInChunk = 0;
+        int idxInChunk = 0, k = 0;
         long fromTime = -1, toTime = -1;
-        Chunk<T> chunk = firstChunk;
+        Chunk<T> chunk = peekChunk(0);
         for (; remainingStampCount --> 0; idxInChunk++) {
             if (idxInChunk == chunk.size()) {
                 idxInChunk = 0;
-                chunk = chunk.getNext();
+                chunk = peekChunk(++k);
             }
             if (stateFrom.equals(chunk.getState(idxInChunk))) {
                 fromTime = chunk.getTimestamp(idxInChunk);
@@ -134,7 +309,7 @@ public class Passport<T> {
         for (; remainingStampCount --> 0; idxInChunk++) {
             if (idxInChunk == chunk.size()) {
                 idxInChunk = 0;
-                chunk = chunk.getNext();
+                chunk = peekChunk(++k);
             }
             if (stateTo.equals(chunk.getState(idxInChunk))) {
                 toTime = chunk.getTimestamp(idxInChunk);
@@ -144,54 +319,4 @@ public class Passport<T> {
 
         return (toTime == -1) ? -1 : (toTime - fromTime);
     }
-
-    private static String formatNsDelta(long delta) {
-        if (delta < 1000)
-            return "" + delta + "ns";
-        if (delta < 1000000)
-            return "" + (delta / 1000) + "us";
-        return "" + (delta / 1000000) + "ms";
-    }
-
-    public String toString() {
-        StringBuilder sb = new StringBuilder();
-        String issued = Instant.ofEpochMilli(issuedTimeMs).toString();
-        Chunk<T> chunk = firstChunk;
-        long firstTime = chunk.getTimestamp(0);
-        Object firstState = chunk.getState(0);
-        String fmt = "\n%" + issued.length() + "s - %s";
-        int stampCountNum = stampCount.get() - 1;
-
-        sb.append(issued).append(" - ").append(firstState == null ?
-                                               "<created>" : firstState);
-        for (int ci = 1; stampCountNum --> 0; ci++) {
-            if (ci == chunk.size()) {
-                ci = 0;
-                chunk = chunk.getNext();
-            }
-            sb.append(String.format(fmt,
-                                    "+" + formatNsDelta(chunk.getTimestamp(ci) - firstTime),
-                                    chunk.getState(ci)));
-        }
-
-        return sb.toString();
-    }
-
-    /** Return a list of all events in the Passport. This method is inefficient
-     * and should only be used for testing and debugging purposes.
-     * @return List of Event objects.
-     **/
-    public List<Event<T>> getEvents() {
-        int n = stampCount.get();
-        int i = 0;
-        ArrayList<Event<T>> result = new ArrayList<>(n);
-        Chunk<T> chunk = firstChunk;
-        while (true) {
-            for (int j = 0; j < chunk.size() && i < n; i++, j++)
-                result.add(new Event<>(chunk.getState(j), chunk.getTimestamp(j), i));
-            if (i == n) break;
-            chunk = chunk.getNext();
-        }
-        return result;
-    }
 }
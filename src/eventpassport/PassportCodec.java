@@ -0,0 +1,155 @@
+package eventpassport;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/** Binary encoding of passports for shipping them to other processes. An
+ * encoded passport consists of:
+ *
+ * <pre>
+ * byte    format version (1)
+ * int32   number of bytes that follow, big-endian
+ * varint  issue time in milliseconds, zigzag-encoded
+ * events until the end:
+ *         varint  state id from the StateRegistry
+ *         varint  timestamp minus the previous timestamp (0 for the first
+ *                 event), zigzag-encoded
+ * </pre>
+ *
+ * Varints hold 7 bits per byte, lowest first, so a typical event takes 2-4
+ * bytes. The format doesn't depend on the byte order of the buffers. States
+ * are encoded as registry ids, so the decoding side must use a registry that
+ * maps the same ids to the same states, e.g. one populated in the same order.
+ * @param <T> Type of the event states.
+ **/
+public class PassportCodec<T> {
+
+    static final byte VERSION = 1;
+    /** Size of the version and the length fields. **/
+    static final int PREFIX_SIZE = 5;
+
+    private final StateRegistry<T> registry;
+
+    /** Construct a codec that encodes states with the given registry.
+     * @param registry Registry that maps states to ids.
+     **/
+    public PassportCodec(StateRegistry<T> registry) {
+        this.registry = registry;
+    }
+
+    /** Return the registry used by this codec.
+     * @return Registry object.
+     **/
+    public StateRegistry<T> getRegistry() {
+        return registry;
+    }
+
+    /** Write the published events of the passport at the current position of
+     * the buffer and advance the position past them. If the passport doesn't
+     * fit or can't be read, the position is left unchanged.
+     * @param  passport Passport to encode.
+     * @param  out      Buffer to write to.
+     * @return          Number of bytes written.
+     * @throws BufferOverflowException If the remaining space is insufficient.
+     **/
+    public int encode(AbstractPassport<T> passport, ByteBuffer out) {
+        int start = out.position();
+        try {
+            out.put(VERSION).putInt(0); // Length is patched below.
+            putVarLong(out, zigzag(passport.issuedTimeMs));
+            EventCursor<T> c = passport.cursor(0);
+            long prev = 0;
+            while (c.next()) {
+                putVarLong(out, registry.idOf(c.state));
+                putVarLong(out, zigzag(c.timestamp - prev));
+                prev = c.timestamp;
+            }
+
+            int length = out.position() - start - PREFIX_SIZE;
+            out.put(start + 1, (byte)(length >>> 24))
+                .put(start + 2, (byte)(length >>> 16))
+                .put(start + 3, (byte)(length >>> 8))
+                .put(start + 4, (byte)length);
+            return out.position() - start;
+        } catch (RuntimeException e) {
+            out.position(start);
+            throw e;
+        }
+    }
+
+    /** Read the passport at the current position of the buffer and advance the
+     * position past it. The returned passport is a read-only view that
+     * decodes the events from the buffer on every query, so the buffer
+     * contents must not change while the passport is in use. The events are
+     * validated once here, so corrupt input fails the decoding rather than
+     * the queries.
+     * @param  in Buffer to read from.
+     * @return    Decoded passport.
+     * @throws BufferUnderflowException If the buffer ends before the passport.
+     * @throws IllegalArgumentException If the buffer holds an unknown format,
+     *                                  a malformed passport, or state ids
+     *                                  unknown to the registry.
+     **/
+    public DecodedPassport<T> decode(ByteBuffer in) {
+        int start = in.position();
+        if (in.remaining() < PREFIX_SIZE)
+            throw new BufferUnderflowException();
+        byte version = in.get(start);
+        if (version != VERSION)
+            throw new IllegalArgumentException("Unknown passport format version: " + version);
+        int length = ((in.get(start + 1) & 0xFF) << 24) | ((in.get(start + 2) & 0xFF) << 16)
+            | ((in.get(start + 3) & 0xFF) << 8) | (in.get(start + 4) & 0xFF);
+        if (length < 0 || in.remaining() - PREFIX_SIZE < length)
+            throw new BufferUnderflowException();
+
+        ByteBuffer body = in.duplicate();
+        body.position(start + PREFIX_SIZE).limit(start + PREFIX_SIZE + length);
+        body = body.slice().asReadOnlyBuffer();
+        DecodedPassport<T> passport = new DecodedPassport<>(registry, body);
+        in.position(start + PREFIX_SIZE + length);
+        return passport;
+    }
+
+    /** Longest varint of a 64-bit value. **/
+    static final int MAX_VARINT_SIZE = 10;
+
+    /** Read a varint at the current position of the buffer and advance the
+     * position past it.
+     * @throws IllegalArgumentException If the varint is longer than 10 bytes.
+     **/
+    static long getVarLong(ByteBuffer in) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift == 7 * MAX_VARINT_SIZE)
+                throw new IllegalArgumentException("Malformed passport: varint is too long");
+            b = in.get();
+            v |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return v;
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Return the number of bytes {@code putVarLong} writes for the value. **/
+    static int varLongSize(long v) {
+        return Math.max(1, (64 - Long.numberOfLeadingZeros(v) + 6) / 7);
+    }
+
+    static void putVarLong(ByteBuffer out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte)((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte)v);
+    }
+}
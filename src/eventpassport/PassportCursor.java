@@ -0,0 +1,80 @@
+package eventpassport;
+
+/** Cursor over a {@link Passport} that walks the chunks directly instead of
+ * computing the location of every event. It can be reset to another passport,
+ * so a thread that iterates many passports (e.g. an exporter) can keep one
+ * cursor and iterate them all without allocating.
+ *
+ * <pre>{@code
+ * PassportCursor<String> c = new PassportCursor<>();
+ * for (Passport<String> p : finished) {
+ *     c.reset(p);
+ *     while (c.next())
+ *         export(c.getState(), c.getTimestamp());
+ * }
+ * }</pre>
+ * @param <T> Type of the event states.
+ **/
+public class PassportCursor<T> extends EventCursor<T> {
+
+    private Passport<T> passport;
+    private int end;
+    private Chunk<T> chunk;
+    private int k, ci;
+
+    /** Construct a cursor that has no events until it is reset. **/
+    public PassportCursor() {}
+
+    /** Position the cursor before the first event of the given passport.
+     * @param  passport Passport to iterate.
+     * @return          This cursor.
+     **/
+    public PassportCursor<T> reset(Passport<T> passport) {
+        return reset(passport, 0);
+    }
+
+    /** Position the cursor before the first event of the given passport whose
+     * index is not lower than {@code startFrom}. Events published after this
+     * call are not visited.
+     * @param  passport  Passport to iterate.
+     * @param  startFrom Index of the first event to visit.
+     * @return           This cursor.
+     **/
+    public PassportCursor<T> reset(Passport<T> passport, int startFrom) {
+        startFrom = Math.max(startFrom, 0);
+        this.passport = passport;
+        int firstShift = passport.firstShift();
+        end = passport.publishedCount();
+        index = startFrom - 1;
+        chunk = null;
+        if (startFrom < end) {
+            k = Chunk.chunkNumber(startFrom, firstShift);
+            ci = Chunk.offsetInChunk(startFrom, k, firstShift) - 1;
+            chunk = passport.peekChunk(k);
+        }
+        return this;
+    }
+
+    /** Drop the references to the passport, leaving the cursor without
+     * events until it is reset. **/
+    void clear() {
+        passport = null;
+        chunk = null;
+        end = 0;
+        index = -1;
+    }
+
+    @Override
+    public boolean next() {
+        if (index + 1 >= end)
+            return false;
+        index++;
+        if (++ci == chunk.size()) {
+            ci = 0;
+            chunk = passport.peekChunk(++k);
+        }
+        state = chunk.getState(ci);
+        timestamp = chunk.getTimestamp(ci);
+        return true;
+    }
+}
@@ -0,0 +1,227 @@
+package eventpassport;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/** Exports finished passports in the background. Request threads hand the
+ * passports over with {@link #submit(AbstractPassport)}, which only places
+ * them into a bounded ring; a single exporter thread takes them out, encodes
+ * them with a {@link PassportCodec} into batches, and passes the batches to a
+ * {@link PassportSink}. If the ring is full, the passport is dropped and
+ * counted, so a slow sink never blocks the request threads.
+ *
+ * The ring is a bounded multi-producer single-consumer queue where every slot
+ * carries a sequence number: a producer claims a slot by a CAS on the tail
+ * once the slot's sequence shows that the consumer has freed it, and
+ * publishes the passport by advancing the sequence again. Submitting is
+ * lock-free: the CAS is only retried when another producer claims the same
+ * slot.
+ *
+ * A submitted passport is read on the exporter thread later, so it must not
+ * be stamped anymore, nor released into a {@link PassportPool}.
+ * @param <T> Type of the event states.
+ **/
+public class PassportExporter<T> implements AutoCloseable {
+
+    /** How long the exporter thread sleeps when the ring is empty. **/
+    static final long IDLE_PARK_NS = 1000000;
+
+    private final PassportCodec<T> codec;
+    private final PassportSink sink;
+    private final AtomicReferenceArray<AbstractPassport<T>> slots;
+    /** Slot i is free for the producer of position p when it holds p, and
+     * holds the passport of position p when it holds p + 1. **/
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(0);
+    /** Next position to consume. Only accessed by the exporter thread. **/
+    private long head = 0;
+
+    private final ByteBuffer batch;
+    private int batchCount = 0;
+
+    /** Passports dropped because the ring was full. The submitted count is
+     * derived from it and the tail, so that submitting a passport touches no
+     * other shared counters. **/
+    private final AtomicLong rejected = new AtomicLong(0);
+    /** Passports that didn't fit into a batch. **/
+    private final AtomicLong oversized = new AtomicLong(0);
+    private final AtomicLong exported = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /** Construct an exporter. The exporter thread is started by
+     * {@link #start()}.
+     * @param codec      Codec to encode the passports with.
+     * @param sink       Destination of the encoded batches.
+     * @param capacity   Number of passports the ring can hold, rounded up to a
+     *                   power of two.
+     * @param batchBytes Size of the batch buffer. Passports that don't fit
+     *                   into an empty batch are dropped.
+     **/
+    public PassportExporter(PassportCodec<T> codec, PassportSink sink, int capacity, int batchBytes) {
+        if (capacity <= 0 || capacity > (1 << 30))
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30: " + capacity);
+        this.codec = codec;
+        this.sink = sink;
+        int size = 1 << (32 - Integer.numberOfLeadingZeros(capacity - 1));
+        mask = size - 1;
+        slots = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        batch = ByteBuffer.allocateDirect(batchBytes);
+        thread = new Thread(this::run, "passport-exporter");
+        thread.setDaemon(true);
+    }
+
+    /** Start the exporter thread.
+     * @return This object.
+     **/
+    public PassportExporter<T> start() {
+        thread.start();
+        return this;
+    }
+
+    /** Queue a finished passport for export.
+     * @param  passport Passport that won't be stamped anymore.
+     * @return          True if queued, false if dropped because the ring is full.
+     **/
+    public boolean submit(AbstractPassport<T> passport) {
+        long t = tail.get();
+        while (true) {
+            int i = (int)t & mask;
+            long d = sequences.get(i) - t;
+            if (d == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    slots.lazySet(i, passport);
+                    sequences.lazySet(i, t + 1);
+                    return true;
+                }
+                t = tail.get();
+            } else if (d < 0) {
+                // The consumer hasn't freed the slot from the previous lap.
+                rejected.incrementAndGet();
+                return false;
+            } else {
+                // Another producer has claimed this position.
+                t = tail.get();
+            }
+        }
+    }
+
+    /** Take the next passport from the ring, or return null if it's empty. **/
+    private AbstractPassport<T> poll() {
+        int i = (int)head & mask;
+        if (sequences.get(i) != head + 1)
+            return null;
+        AbstractPassport<T> p = slots.get(i);
+        slots.lazySet(i, null);
+        sequences.lazySet(i, head + mask + 1);
+        head++;
+        return p;
+    }
+
+    private void run() {
+        while (true) {
+            // Read the flag before draining, so that the passports submitted
+            // before close() are drained on the last round.
+            boolean last = !running;
+            AbstractPassport<T> p;
+            while ((p = poll()) != null)
+                add(p);
+            flush();
+            if (last)
+                return;
+            LockSupport.parkNanos(this, IDLE_PARK_NS);
+        }
+    }
+
+    /** Encode the passport into the batch, flushing the batch if it is full.
+     * A passport that fails to encode, e.g. because it was released into a
+     * pool, is counted as failed and doesn't stop the exporter thread. **/
+    private void add(AbstractPassport<T> p) {
+        try {
+            try {
+                codec.encode(p, batch);
+            } catch (BufferOverflowException e) {
+                flush();
+                try {
+                    codec.encode(p, batch);
+                } catch (BufferOverflowException e2) {
+                    oversized.incrementAndGet();
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            return;
+        }
+        batchCount++;
+    }
+
+    private void flush() {
+        if (batchCount == 0)
+            return;
+        batch.flip();
+        try {
+            sink.write(batch, batchCount);
+            exported.addAndGet(batchCount);
+        } catch (Exception e) {
+            failed.addAndGet(batchCount);
+        }
+        batch.clear();
+        batchCount = 0;
+    }
+
+    /** Stop the exporter thread after it exports the passports submitted so
+     * far. Passports submitted concurrently with closing may be left
+     * unexported. If the calling thread is interrupted while waiting, it
+     * returns early with the interrupt flag set.
+     **/
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            if (thread.isAlive())
+                thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Return the number of passports passed to {@code submit}.
+     * @return Submitted passport count.
+     **/
+    public long getSubmittedCount() {
+        return tail.get() + rejected.get();
+    }
+
+    /** Return the number of passports dropped because the ring was full or
+     * the passport didn't fit into a batch.
+     * @return Dropped passport count.
+     **/
+    public long getDroppedCount() {
+        return rejected.get() + oversized.get();
+    }
+
+    /** Return the number of passports written by the sink.
+     * @return Exported passport count.
+     **/
+    public long getExportedCount() {
+        return exported.get();
+    }
+
+    /** Return the number of passports that failed to encode or were in the
+     * batches that the sink failed to write.
+     * @return Failed passport count.
+     **/
+    public long getFailedCount() {
+        return failed.get();
+    }
+}
@@ -0,0 +1,160 @@
+package eventpassport;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Creates passports with the first chunk sized after the passports that the
+ * factory has created recently, so that a call site with predictable
+ * passports doesn't have to specify a capacity hint. Use one factory per call
+ * site (e.g. per endpoint), and report every finished passport with
+ * {@link #complete(Passport)}.
+ *
+ * The factory keeps a histogram of the final event counts with a bucket per
+ * power of two, which matches the possible first chunk sizes. Every
+ * {@code RESIZE_INTERVAL} completed passports, new passports are resized to
+ * the given percentile of the histogram (95th by default). Every
+ * {@code DECAY_INTERVAL} completed passports, the histogram is halved, so
+ * that old passports gradually lose their weight.
+ *
+ * The counters of passport growth are exposed for monitoring. A high share of
+ * grown passports means that the percentile is too low for the call site.
+ * @param <T> Type of the event states.
+ **/
+public class PassportFactory<T> {
+
+    static final int RESIZE_INTERVAL = 64;
+    static final int DECAY_INTERVAL = 1024;
+    /** One bucket per possible first chunk shift. **/
+    private static final int BUCKETS = 31;
+
+    private final double percentile;
+    private volatile int expectedEvents;
+    /** Bucket i counts passports that fit into {@code 1 << i} events, but
+     * not into half of that. **/
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong created = new AtomicLong(0);
+    private final AtomicLong completed = new AtomicLong(0);
+    private final AtomicLong grownPassports = new AtomicLong(0);
+    private final AtomicLong growthAllocations = new AtomicLong(0);
+
+    /** Construct a factory that starts with the default passport size and
+     * sizes passports at the 95th percentile. **/
+    public PassportFactory() {
+        this(1 << Passport.DEFAULT_FIRST_CHUNK_SHIFT, 95);
+    }
+
+    /** Construct a factory that starts with the given passport size and sizes
+     * passports at the 95th percentile.
+     * @param initialExpectedEvents Expected number of events until the factory
+     *                              learns better, must be positive.
+     **/
+    public PassportFactory(int initialExpectedEvents) {
+        this(initialExpectedEvents, 95);
+    }
+
+    /** Construct a factory that starts with the given passport size and sizes
+     * passports at the given percentile of the recent event counts.
+     * @param initialExpectedEvents Expected number of events until the factory
+     *                              learns better, must be positive.
+     * @param percentile            Percentile between 0 (exclusive) and 100.
+     **/
+    public PassportFactory(int initialExpectedEvents, double percentile) {
+        if (!(percentile > 0 && percentile <= 100))
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+        this.expectedEvents = 1 << Passport.firstChunkShift(initialExpectedEvents);
+        this.percentile = percentile;
+    }
+
+    /** Construct a new passport sized for the current expected event count.
+     * @param  initState Initial state (first stamp). Can be null.
+     * @return           New passport.
+     **/
+    public Passport<T> create(T initState) {
+        created.incrementAndGet();
+        return new Passport<>(initState, expectedEvents);
+    }
+
+    /** Report a passport that won't be stamped anymore, so that the factory
+     * can learn its size. The passport doesn't have to come from this factory.
+     * @param passport Finished passport.
+     **/
+    public void complete(Passport<T> passport) {
+        int n = passport.publishedCount();
+        int size = passport.firstChunkSize();
+        if (n > size) {
+            int shift = Integer.numberOfTrailingZeros(size);
+            grownPassports.incrementAndGet();
+            growthAllocations.addAndGet(Chunk.chunkNumber(n - 1, shift));
+        }
+        histogram.incrementAndGet(Passport.firstChunkShift(Math.max(n, 1)));
+
+        long c = completed.incrementAndGet();
+        if (c % DECAY_INTERVAL == 0)
+            decay();
+        if (c % RESIZE_INTERVAL == 0)
+            resize();
+    }
+
+    /** Halve the histogram. Concurrent increments may be halved or not,
+     * either way the histogram stays approximately right. **/
+    private void decay() {
+        for (int i = 0; i < BUCKETS; i++)
+            histogram.addAndGet(i, -(histogram.get(i) >>> 1));
+    }
+
+    /** Set the expected event count to the configured percentile of the
+     * histogram. **/
+    private void resize() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += histogram.get(i);
+        long rank = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram.get(i);
+            if (seen >= rank) {
+                expectedEvents = 1 << i;
+                return;
+            }
+        }
+    }
+
+    /** Return the number of events that new passports are sized for. Always a
+     * power of two.
+     * @return Expected number of events.
+     **/
+    public int getExpectedEvents() {
+        return expectedEvents;
+    }
+
+    /** Return the number of passports created by this factory.
+     * @return Created passport count.
+     **/
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    /** Return the number of passports reported with {@code complete}.
+     * @return Completed passport count.
+     **/
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /** Return the number of completed passports that outgrew their first
+     * chunk.
+     * @return Grown passport count.
+     **/
+    public long getGrownCount() {
+        return grownPassports.get();
+    }
+
+    /** Return the total number of chunks that completed passports allocated
+     * beyond their first chunk.
+     * @return Growth allocation count.
+     **/
+    public long getGrowthAllocations() {
+        return growthAllocations.get();
+    }
+}
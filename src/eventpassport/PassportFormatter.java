@@ -0,0 +1,157 @@
+package eventpassport;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+
+/** Renders passports in the format of {@link AbstractPassport#toString()}:
+ *
+ * <pre>
+ * 2023-08-22T11:44:14.042Z - CREATED
+ *                    +68us - REQUEST_SENT
+ *                  +3005ms - RESPONSE_TIMEOUT
+ * </pre>
+ *
+ * The formatter writes straight into the given {@link Appendable} (e.g. a
+ * StringBuilder, a CharBuffer or a Writer) without intermediate strings,
+ * except for the states' {@code toString}. The issue time is rendered from the
+ * cached text of its second, so formatting many passports issued around the
+ * same time, like during a log storm, doesn't render the date again. The
+ * formatter is thread-safe.
+ **/
+public class PassportFormatter {
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    /** Rendered second of the last formatted issue time, without the zone
+     * designator. Replaced as a whole, so readers never see a torn pair. **/
+    private static final class CachedSecond {
+        final long epochSecond;
+        final String text;
+
+        CachedSecond(long epochSecond, String text) {
+            this.epochSecond = epochSecond;
+            this.text = text;
+        }
+    }
+
+    private volatile CachedSecond cachedSecond = new CachedSecond(Long.MIN_VALUE, null);
+
+    /** Format the passport into a new string.
+     * @param  passport Passport to format.
+     * @return          Formatted passport.
+     **/
+    public String format(AbstractPassport<?> passport) {
+        return format(passport, new StringBuilder(256)).toString();
+    }
+
+    /** Append the formatted passport to the StringBuilder.
+     * @param  passport Passport to format.
+     * @param  sb       StringBuilder to append to.
+     * @return          The same StringBuilder.
+     **/
+    public StringBuilder format(AbstractPassport<?> passport, StringBuilder sb) {
+        try {
+            format(passport, (Appendable)sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Never thrown by StringBuilder.
+        }
+        return sb;
+    }
+
+    /** Append the formatted passport to the Appendable.
+     * @param  passport    Passport to format.
+     * @param  out         Appendable to write to.
+     * @param  <A>         Type of the Appendable.
+     * @return             The same Appendable.
+     * @throws IOException If the Appendable throws it.
+     **/
+    public <A extends Appendable> A format(AbstractPassport<?> passport, A out) throws IOException {
+        int width = appendInstant(passport.issuedTimeMs, out);
+        EventCursor<?> c = passport.cursor(0);
+        Object firstState = null;
+        long firstTime = 0;
+        if (c.next()) {
+            firstState = c.state;
+            firstTime = c.timestamp;
+        }
+        out.append(" - ").append(firstState == null ? "<created>" : firstState.toString());
+
+        while (c.next()) {
+            out.append('\n');
+            appendDelta(c.timestamp - firstTime, width, out);
+            out.append(" - ").append(String.valueOf(c.state));
+        }
+        return out;
+    }
+
+    /** Append the time in the format of {@link Instant#toString()} and return
+     * the number of characters written. **/
+    private int appendInstant(long epochMs, Appendable out) throws IOException {
+        long second = Math.floorDiv(epochMs, 1000);
+        int ms = (int)Math.floorMod(epochMs, 1000);
+        CachedSecond cached = cachedSecond;
+        if (cached.epochSecond != second) {
+            String s = Instant.ofEpochSecond(second).toString();
+            cached = new CachedSecond(second, s.substring(0, s.length() - 1));
+            cachedSecond = cached;
+        }
+        out.append(cached.text);
+        // Instant omits the fraction of whole seconds.
+        if (ms == 0) {
+            out.append('Z');
+            return cached.text.length() + 1;
+        }
+        out.append('.')
+            .append((char)('0' + ms / 100))
+            .append((char)('0' + ms / 10 % 10))
+            .append((char)('0' + ms % 10))
+            .append('Z');
+        return cached.text.length() + 5;
+    }
+
+    /** Append the delta as {@code +<value><unit>}, right-aligned to the given
+     * width. **/
+    private static void appendDelta(long delta, int width, Appendable out) throws IOException {
+        long value;
+        String unit;
+        if (delta < 1000) {
+            value = delta;
+            unit = "ns";
+        } else if (delta < 1000000) {
+            value = delta / 1000;
+            unit = "us";
+        } else {
+            value = delta / 1000000;
+            unit = "ms";
+        }
+
+        if (value == Long.MIN_VALUE) {
+            // Can't be negated, not worth a fast path.
+            String s = "+" + value + unit;
+            for (int i = s.length(); i < width; i++)
+                out.append(' ');
+            out.append(s);
+            return;
+        }
+
+        long abs = Math.abs(value);
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && abs >= POWERS_OF_TEN[digits])
+            digits++;
+        int length = 1 + (value < 0 ? 1 : 0) + digits + unit.length();
+        for (int i = length; i < width; i++)
+            out.append(' ');
+        out.append('+');
+        if (value < 0)
+            out.append('-');
+        for (int d = digits - 1; d >= 0; d--)
+            out.append((char)('0' + abs / POWERS_OF_TEN[d] % 10));
+        out.append(unit);
+    }
+}
@@ -0,0 +1,345 @@
+package eventpassport;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** Append-only journal of encoded passports in a rolling set of memory-mapped
+ * files, for analysis after the process has crashed or was killed. Appending
+ * copies the encoded passport into the mapped memory without system calls;
+ * the OS writes it to the file even if the JVM dies. Use
+ * {@link JournalReader} to read the journal back, in this or another process.
+ *
+ * Every segment file has a fixed size and holds a sequence of records: a kind
+ * byte ({@code FINISHED}, {@code SNAPSHOT} or {@code DICTIONARY}) followed
+ * by a version byte, a 4-byte big-endian length, and the body. Passport
+ * records hold the passport encoded with {@link PassportCodec}, whose state
+ * ids only make sense with the registry of the writing process, so every
+ * segment also carries dictionary records that map the ids to the
+ * {@code toString} of the states. A dictionary record is written into the
+ * segment before the first passport that uses its ids, so each segment can be
+ * read on its own after the older ones are deleted.
+ *
+ * A writer reserves the space for the record with a CAS, copies the record
+ * and writes the kind byte last, after a release fence, so a record with a
+ * zero kind byte is unfinished. When a segment is full, the next one is
+ * created, and the oldest segments beyond {@code maxSegments} are deleted.
+ * Segments of earlier runs in the same directory are kept and count towards
+ * the limit.
+ *
+ * Appending never throws: passports that can't be written (larger than a
+ * segment, or than the space left after the dictionary of all the registered
+ * states, unreadable, or the next segment can't be created) are dropped and
+ * counted.
+ * @param <T> Type of the event states.
+ **/
+public class PassportJournal<T> implements AutoCloseable {
+
+    /** Kind of a record with a finished passport. **/
+    public static final byte FINISHED = 1;
+    /** Kind of a record with a snapshot of an in-flight passport. **/
+    public static final byte SNAPSHOT = 2;
+    /** Kind of a record with state names for a range of ids. **/
+    static final byte DICTIONARY = 3;
+
+    /** Size of the kind, version and length fields of a record. **/
+    static final int HEADER_SIZE = 1 + PassportCodec.PREFIX_SIZE;
+    static final String PREFIX = "passports-";
+    static final String SUFFIX = ".journal";
+    private static final int INITIAL_SCRATCH_SIZE = 4096;
+    /** Largest scratch buffer kept by a thread; passports that need a larger
+     * one are encoded into a buffer that is thrown away after the append. **/
+    private static final int MAX_RETAINED_SCRATCH_SIZE = 64 * 1024;
+
+    /** A mapped segment file and the number of bytes reserved in it. **/
+    private static final class Segment {
+        final MappedByteBuffer buffer;
+        final AtomicInteger reserved = new AtomicInteger(0);
+        /** Number of state ids covered by the dictionary records written into
+         * this segment. Updated under the segment's lock after the records are
+         * reserved, so passports reserved after reading it come later. Id 0 is
+         * the null state and needs no entry. **/
+        volatile int dictionarySize = 1;
+
+        Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path dir;
+    private final PassportCodec<T> codec;
+    private final int segmentBytes;
+    private final int maxSegments;
+    /** Segments in the directory, oldest first. Guarded by this. **/
+    private final ArrayDeque<Path> segments = new ArrayDeque<>();
+    /** Sequence number of the next segment file. Guarded by this. **/
+    private long nextSeq;
+    private volatile Segment current;
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    /** Buffer that passports are encoded into before being copied into the
+     * segment. Grows up to {@code MAX_RETAINED_SCRATCH_SIZE}. **/
+    private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocate(Math.min(INITIAL_SCRATCH_SIZE, segmentBytes));
+            }
+        };
+
+    /** Open a journal in the given directory and create its first segment.
+     * @param  dir          Directory for the segment files, created if missing.
+     * @param  codec        Codec to encode the passports with.
+     * @param  segmentBytes Size of each segment file.
+     * @param  maxSegments  Number of segment files to keep.
+     * @throws IOException  If the first segment can't be created.
+     **/
+    public PassportJournal(Path dir, PassportCodec<T> codec, int segmentBytes, int maxSegments)
+        throws IOException {
+        if (segmentBytes <= HEADER_SIZE)
+            throw new IllegalArgumentException("segmentBytes is too small: " + segmentBytes);
+        if (maxSegments <= 0)
+            throw new IllegalArgumentException("maxSegments must be positive: " + maxSegments);
+        this.dir = dir;
+        this.codec = codec;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(dir);
+        List<Path> existing = listSegments(dir);
+        synchronized (this) {
+            segments.addAll(existing);
+            nextSeq = existing.isEmpty() ? 0 : segmentSeq(existing.get(existing.size() - 1)) + 1;
+            current = openSegment();
+        }
+    }
+
+    /** Return the segment files in the directory, oldest first.
+     * @param  dir         Journal directory.
+     * @return             Segment paths.
+     * @throws IOException If the directory can't be listed.
+     **/
+    static List<Path> listSegments(Path dir) throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p : ds)
+                result.add(p);
+        }
+        result.sort(Comparator.comparingLong(PassportJournal::segmentSeq));
+        return result;
+    }
+
+    static long segmentSeq(Path p) {
+        String name = p.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /** Create and map the next segment, and delete the oldest segments beyond
+     * the limit. The sequence number is used up even if creating the file
+     * fails, so that the next attempt doesn't trip over a leftover file.
+     * Failing to delete an old segment doesn't fail this call. **/
+    private Segment openSegment() throws IOException {
+        Path path = dir.resolve(String.format("%s%016d%s", PREFIX, nextSeq++, SUFFIX));
+        MappedByteBuffer buffer;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } catch (FileAlreadyExistsException e) {
+            // Not ours to delete.
+            throw e;
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        }
+        segments.addLast(path);
+        while (segments.size() > maxSegments) {
+            try {
+                Files.deleteIfExists(segments.removeFirst());
+            } catch (IOException e) {
+                // Left on disk; the journal keeps working.
+            }
+        }
+        return new Segment(buffer);
+    }
+
+    /** Append a finished passport.
+     * @param  passport Passport to append.
+     * @return          True if appended, false if dropped.
+     **/
+    public boolean append(AbstractPassport<T> passport) {
+        return append(passport, FINISHED);
+    }
+
+    /** Append a snapshot of the events stamped into an in-flight passport so
+     * far. The passport can keep being stamped.
+     * @param  passport Passport to append.
+     * @return          True if appended, false if dropped.
+     **/
+    public boolean appendSnapshot(AbstractPassport<T> passport) {
+        return append(passport, SNAPSHOT);
+    }
+
+    private boolean append(AbstractPassport<T> passport, byte kind) {
+        ByteBuffer src = encode(passport);
+        if (src == null) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        // Encoding has registered every state of the passport, so all its ids
+        // are below the registry size read after it.
+        int ids = codec.getRegistry().size();
+        while (true) {
+            Segment s = current;
+            if (s.dictionarySize < ids && !writeDictionary(s, ids)) {
+                if (!roll(s)) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                continue;
+            }
+            int start = reserve(s, 1 + src.remaining());
+            if (start >= 0) {
+                write(s, start, kind, src);
+                return true;
+            }
+            if (!roll(s)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    /** Reserve the given number of bytes in the segment. Return the offset of
+     * the reserved space, or -1 if the segment doesn't have enough left. **/
+    private int reserve(Segment s, int size) {
+        while (true) {
+            int start = s.reserved.get();
+            if (start + size > segmentBytes)
+                return -1;
+            if (s.reserved.compareAndSet(start, start + size))
+                return start;
+        }
+    }
+
+    /** Copy the record body after the kind byte at the given offset, then
+     * publish the record by writing the kind. **/
+    private static void write(Segment s, int start, byte kind, ByteBuffer src) {
+        ByteBuffer dst = s.buffer.duplicate();
+        dst.position(start + 1);
+        dst.put(src);
+        Fences.release();
+        s.buffer.put(start, kind);
+    }
+
+    /** Write the dictionary entries for the ids the segment doesn't cover yet,
+     * up to {@code ids}, directly into the segment. Return false if they don't
+     * fit into the segment. **/
+    private boolean writeDictionary(Segment s, int ids) {
+        synchronized (s) {
+            int from = s.dictionarySize;
+            if (from >= ids)
+                return true;
+            StateRegistry<T> registry = codec.getRegistry();
+            byte[][] names = new byte[ids - from][];
+            long size = PassportCodec.PREFIX_SIZE + PassportCodec.varLongSize(from);
+            for (int i = 0; i < names.length; i++) {
+                names[i] = String.valueOf(registry.stateOf(from + i)).getBytes(StandardCharsets.UTF_8);
+                size += PassportCodec.varLongSize(names[i].length) + names[i].length;
+            }
+            if (size >= segmentBytes)
+                return false;
+            int start = reserve(s, 1 + (int)size);
+            if (start < 0)
+                return false;
+            ByteBuffer dst = s.buffer.duplicate();
+            dst.position(start + 1);
+            dst.put(PassportCodec.VERSION).putInt((int)size - PassportCodec.PREFIX_SIZE);
+            PassportCodec.putVarLong(dst, from);
+            for (byte[] name : names) {
+                PassportCodec.putVarLong(dst, name.length);
+                dst.put(name);
+            }
+            Fences.release();
+            s.buffer.put(start, DICTIONARY);
+            s.dictionarySize = ids;
+            return true;
+        }
+    }
+
+    /** Encode the passport into the thread's scratch buffer, growing it up to
+     * the segment size. Only buffers up to {@code MAX_RETAINED_SCRATCH_SIZE}
+     * are kept for the next append. Return the flipped buffer, or null if the
+     * passport doesn't fit into a segment or can't be read. **/
+    private ByteBuffer encode(AbstractPassport<T> passport) {
+        ByteBuffer buf = scratch.get();
+        while (true) {
+            buf.clear();
+            try {
+                codec.encode(passport, buf);
+                buf.flip();
+                return buf;
+            } catch (BufferOverflowException e) {
+                if (buf.capacity() >= segmentBytes - 1)
+                    return null;
+                buf = ByteBuffer.allocate(Math.min(buf.capacity() * 2, segmentBytes - 1));
+                if (buf.capacity() <= MAX_RETAINED_SCRATCH_SIZE)
+                    scratch.set(buf);
+            } catch (RuntimeException e) {
+                // E.g. a passport released into a pool.
+                return null;
+            }
+        }
+    }
+
+    /** Replace the full segment with a new one, unless another thread has
+     * already done it. Return false if the full segment was empty, so the
+     * record can't fit into any segment, or if the new segment can't be
+     * created. **/
+    private synchronized boolean roll(Segment full) {
+        if (current != full)
+            return true;
+        if (full.reserved.get() == 0)
+            return false;
+        try {
+            current = openSegment();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Flush the current segment to the storage device. Not needed to survive
+     * a JVM crash, only an OS crash or a power loss. **/
+    public void force() {
+        current.buffer.force();
+    }
+
+    /** Return the number of passports that were not appended.
+     * @return Dropped passport count.
+     **/
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** Return the directory of the journal.
+     * @return Directory path.
+     **/
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /** Flush the current segment. The mapped memory is released by the GC.
+     * Appending after closing is not supported. **/
+    @Override
+    public void close() {
+        force();
+    }
+}
@@ -0,0 +1,80 @@
+package eventpassport;
+
+import java.util.concurrent.atomic.*;
+
+/** A pool of reusable {@link Passport} objects for services that create a
+ * passport per request at high rates. A released passport is cleared and
+ * handed out again by {@link #acquire}, keeping the chunks it has grown up to a
+ * configured capacity, so a steady-state request lifecycle allocates nothing.
+ *
+ * The pool is lock-free and allocation-free. Idle passports are kept in a
+ * fixed array of slots; threads start probing the array at a position derived
+ * from their ID to avoid contending on the same slots. When the pool is empty,
+ * a new passport is created; when it is full, the released passport is left to
+ * the GC.
+ *
+ * A passport must not be used after it was released. In debug mode, the pool
+ * poisons released passports so that stamps and queries on them throw
+ * IllegalStateException, and releasing a passport twice is detected too.
+ * @param <T> Type of the event states.
+ **/
+public class PassportPool<T> {
+
+    private final AtomicReferenceArray<Passport<T>> slots;
+    private final int retainedCapacity;
+    private final boolean debug;
+
+    /** Construct a pool.
+     * @param maxIdle          Maximum number of idle passports held by the
+     *                         pool.
+     * @param retainedCapacity Number of event slots a released passport may
+     *                         keep allocated; larger chunks are dropped.
+     * @param debug            Whether to detect the use of released passports.
+     **/
+    public PassportPool(int maxIdle, int retainedCapacity, boolean debug) {
+        if (maxIdle < 1)
+            throw new IllegalArgumentException("maxIdle must be positive: " + maxIdle);
+        this.slots = new AtomicReferenceArray<>(maxIdle);
+        this.retainedCapacity = retainedCapacity;
+        this.debug = debug;
+    }
+
+    private int startSlot() {
+        int h = (int)Thread.currentThread().getId() * 0x9E3779B9;
+        return (h >>> 1) % slots.length();
+    }
+
+    /** Take an idle passport from the pool, or create a new one if the pool is
+     * empty, and stamp the initial state into it.
+     * @param  initState Initial state (first stamp). Can be null.
+     * @return           Passport object.
+     **/
+    public Passport<T> acquire(T initState) {
+        int n = slots.length();
+        for (int i = 0, slot = startSlot(); i < n; i++, slot = (slot + 1 == n) ? 0 : slot + 1) {
+            Passport<T> p = slots.get(slot);
+            if (p != null && slots.compareAndSet(slot, p, null)) {
+                p.reissue(initState);
+                return p;
+            }
+        }
+        return new Passport<>(initState);
+    }
+
+    /** Return the passport to the pool. The caller must not use the passport
+     * after this call, and no other thread may stamp or read it concurrently.
+     * @param passport Passport to release.
+     **/
+    public void release(Passport<T> passport) {
+        // In debug mode, recycle() poisons the passport, and the check inside
+        // publishedCount() catches the double release.
+        if (debug) passport.publishedCount();
+        passport.recycle(retainedCapacity, debug);
+
+        int n = slots.length();
+        for (int i = 0, slot = startSlot(); i < n; i++, slot = (slot + 1 == n) ? 0 : slot + 1) {
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, passport))
+                return;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package eventpassport;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Tracks the in-flight passports, so that requests that hang can be found
+ * while they are hanging, without a thread dump. Register a passport when the
+ * request starts and deregister it when the request completes;
+ * {@link #scan(long, StuckPassportListener)} reports the passports whose last
+ * event is older than a threshold, and {@link StuckPassportScanner} runs it
+ * periodically.
+ *
+ * Passports are spread over stripes by their identity hash code, and every
+ * stripe is a small concurrent set, so registering threads rarely touch the
+ * same table and a growing stripe resizes only its own table.
+ *
+ * Deregistration is explicit: a passport that is never deregistered stays
+ * registered and is reported as stuck, which is usually the bug the registry
+ * is meant to reveal. Scanning compares the timestamps of the events with
+ * {@code System.nanoTime}, so it expects the passports to be stamped with the
+ * default timestamps.
+ * @param <T> Type of the event states.
+ **/
+public class PassportRegistry<T> {
+
+    private final Set<AbstractPassport<T>>[] stripes;
+    private final int mask;
+
+    /** Construct a registry with a stripe count based on the number of
+     * processors. **/
+    public PassportRegistry() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Construct a registry.
+     * @param stripeCount Number of stripes, rounded up to a power of two.
+     **/
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PassportRegistry(int stripeCount) {
+        if (stripeCount <= 0 || stripeCount > (1 << 30))
+            throw new IllegalArgumentException("stripeCount must be between 1 and 2^30: " + stripeCount);
+        int size = 1 << (32 - Integer.numberOfLeadingZeros(stripeCount - 1));
+        mask = size - 1;
+        stripes = new Set[size];
+        for (int i = 0; i < size; i++)
+            stripes[i] = ConcurrentHashMap.newKeySet();
+    }
+
+    private Set<AbstractPassport<T>> stripeOf(AbstractPassport<T> passport) {
+        int h = System.identityHashCode(passport);
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    /** Start tracking the passport.
+     * @param  passport In-flight passport.
+     * @param  <P>      Type of the passport.
+     * @return          The same passport (for fluent interface).
+     **/
+    public <P extends AbstractPassport<T>> P register(P passport) {
+        stripeOf(passport).add(passport);
+        return passport;
+    }
+
+    /** Stop tracking the passport.
+     * @param  passport Completed passport.
+     * @return          True if the passport was registered.
+     **/
+    public boolean deregister(AbstractPassport<T> passport) {
+        return stripeOf(passport).remove(passport);
+    }
+
+    /** Return the number of registered passports. Not a snapshot if passports
+     * are registered concurrently.
+     * @return Passport count.
+     **/
+    public int size() {
+        int n = 0;
+        for (Set<AbstractPassport<T>> s : stripes)
+            n += s.size();
+        return n;
+    }
+
+    /** Report the registered passports whose last published event is at least
+     * {@code thresholdNs} old. Passports registered or deregistered during
+     * the scan may or may not be visited. Passports that can't be read, e.g.
+     * released into a pool before being deregistered, are skipped.
+     * @param  thresholdNs Minimal idle time in nanoseconds.
+     * @param  listener    Listener to report the stuck passports to.
+     * @return             Number of reported passports.
+     **/
+    public int scan(long thresholdNs, StuckPassportListener<T> listener) {
+        int reported = 0;
+        for (Set<AbstractPassport<T>> s : stripes) {
+            for (AbstractPassport<T> p : s) {
+                Event<T> last;
+                try {
+                    last = p.lastEvent();
+                } catch (RuntimeException e) {
+                    continue;
+                }
+                if (last == null)
+                    continue;
+                long idle = System.nanoTime() - last.timestamp;
+                if (idle >= thresholdNs) {
+                    listener.stuck(p, last.state, idle);
+                    reported++;
+                }
+            }
+        }
+        return reported;
+    }
+}
@@ -0,0 +1,35 @@
+package eventpassport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** Destination for the batches of encoded passports produced by
+ * {@link PassportExporter}. A batch is a sequence of passports encoded with
+ * {@link PassportCodec}, and can be decoded by calling {@code decode} until
+ * the buffer has no bytes remaining.
+ **/
+@FunctionalInterface
+public interface PassportSink {
+
+    /** Consume a batch. The buffer is reused after the method returns, so the
+     * sink must copy the bytes it keeps. Called from the exporter thread only.
+     * @param  batch       Encoded passports between the position and the limit.
+     * @param  passports   Number of passports in the batch.
+     * @throws IOException If the batch couldn't be written. The exporter
+     *                     counts its passports as failed and continues.
+     **/
+    void write(ByteBuffer batch, int passports) throws IOException;
+
+    /** Return a sink that writes the batches into a channel, e.g. a
+     * FileChannel or a SocketChannel.
+     * @param  channel Channel to write to.
+     * @return         Sink object.
+     **/
+    static PassportSink toChannel(WritableByteChannel channel) {
+        return (batch, passports) -> {
+            while (batch.hasRemaining())
+                channel.write(batch);
+        };
+    }
+}
@@ -0,0 +1,163 @@
+package eventpassport;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/** Base for the spliterators over a range of the published events of a
+ * {@link Passport}. Ranges are split at chunk boundaries where possible: since
+ * each chunk is twice the size of the previous one, the boundary closest to
+ * the middle of a range leaves both halves within a factor of two of each
+ * other, and every half walks whole chunks.
+ * @param <T> Type of the event states.
+ **/
+abstract class PassportSpliterator<T> {
+
+    /** Ranges shorter than this are not split, as handing them to another
+     * thread costs more than processing them. **/
+    static final int MIN_SPLIT_SIZE = 128;
+
+    final Passport<T> passport;
+    final int end;
+    int index;
+
+    PassportSpliterator(Passport<T> passport, int from, int end) {
+        this.passport = passport;
+        this.index = from;
+        this.end = end;
+    }
+
+    /** Return the index to split the remaining range at, or -1 if the range
+     * is too short to split.
+     * @return Split index.
+     **/
+    int splitPoint() {
+        if (end - index < MIN_SPLIT_SIZE)
+            return -1;
+        int shift = passport.firstShift();
+        int mid = (index + end) >>> 1;
+        int k = Chunk.chunkNumber(mid, shift);
+        int lower = ((1 << k) - 1) << shift;
+        int upper = ((2 << k) - 1) << shift;
+        if (upper > index && upper < end && upper - mid < mid - lower)
+            return upper;
+        if (lower > index)
+            return lower;
+        return mid;
+    }
+
+    public long estimateSize() {
+        return end - index;
+    }
+
+    /** Spliterator over the events. **/
+    static final class Events<T> extends PassportSpliterator<T> implements Spliterator<Event<T>> {
+
+        Events(Passport<T> passport, int from, int end) {
+            super(passport, from, end);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Event<T>> action) {
+            if (index >= end)
+                return false;
+            action.accept(passport.eventAt(index++));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Event<T>> action) {
+            int i = index, shift = passport.firstShift();
+            if (i >= end)
+                return;
+            index = end;
+            int k = Chunk.chunkNumber(i, shift);
+            int ci = Chunk.offsetInChunk(i, k, shift);
+            Chunk<T> chunk = passport.peekChunk(k);
+            for (; i < end; i++, ci++) {
+                if (ci == chunk.size()) {
+                    ci = 0;
+                    chunk = passport.peekChunk(++k);
+                }
+                action.accept(new Event<>(chunk.getState(ci), chunk.getTimestamp(ci), i));
+            }
+        }
+
+        @Override
+        public Spliterator<Event<T>> trySplit() {
+            int at = splitPoint();
+            if (at < 0)
+                return null;
+            Events<T> prefix = new Events<>(passport, index, at);
+            index = at;
+            return prefix;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+        }
+    }
+
+    /** Spliterator over the timestamps of the events with the given state.
+     * The size is an upper bound, since the events are filtered. **/
+    static final class Timestamps<T> extends PassportSpliterator<T> implements Spliterator.OfLong {
+
+        private final T state;
+
+        Timestamps(Passport<T> passport, T state, int from, int end) {
+            super(passport, from, end);
+            this.state = state;
+        }
+
+        @Override
+        public boolean tryAdvance(LongConsumer action) {
+            int shift = passport.firstShift();
+            while (index < end) {
+                int i = index++;
+                int k = Chunk.chunkNumber(i, shift);
+                int ci = Chunk.offsetInChunk(i, k, shift);
+                Chunk<T> chunk = passport.peekChunk(k);
+                if (state.equals(chunk.getState(ci))) {
+                    action.accept(chunk.getTimestamp(ci));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(LongConsumer action) {
+            int i = index, shift = passport.firstShift();
+            if (i >= end)
+                return;
+            index = end;
+            int k = Chunk.chunkNumber(i, shift);
+            int ci = Chunk.offsetInChunk(i, k, shift);
+            Chunk<T> chunk = passport.peekChunk(k);
+            for (; i < end; i++, ci++) {
+                if (ci == chunk.size()) {
+                    ci = 0;
+                    chunk = passport.peekChunk(++k);
+                }
+                if (state.equals(chunk.getState(ci)))
+                    action.accept(chunk.getTimestamp(ci));
+            }
+        }
+
+        @Override
+        public Spliterator.OfLong trySplit() {
+            int at = splitPoint();
+            if (at < 0)
+                return null;
+            Timestamps<T> prefix = new Timestamps<>(passport, state, index, at);
+            index = at;
+            return prefix;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package eventpassport;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Assigns dense int ids to event states, so that passports can store small
+ * integers instead of object references. Ids are assigned on the first
+ * registration of a state and never change. Id 0 is reserved for the null
+ * state.
+ *
+ * Looking up the id of a registered state and the state by its id never
+ * locks. Registering a new state takes a lock, which is fine because the set of
+ * states is normally small and fixed.
+ * @param <T> Type of the event states.
+ **/
+public class StateRegistry<T> {
+
+    private final ConcurrentHashMap<T, Integer> ids = new ConcurrentHashMap<>();
+
+    /** States by their ids. Replaced with a larger copy when full; a state is
+     * put into the array before its id is published through the map. **/
+    private volatile Object[] states = new Object[16];
+    /** Incremented after the state is published, so that every id below it
+     * can be looked up without locking. **/
+    private volatile int nextId = 1;
+
+    /** Return the id of the given state, registering it if necessary.
+     * @param  state Event state. Can be null.
+     * @return       Id of the state.
+     **/
+    public int idOf(T state) {
+        if (state == null) return 0;
+        Integer id = ids.get(state);
+        return (id != null) ? id : register(state);
+    }
+
+    /** Return the id of the given state, or -1 if the state is not registered.
+     * @param  state Event state. Can be null.
+     * @return       Id of the state or -1.
+     **/
+    public int lookup(T state) {
+        if (state == null) return 0;
+        Integer id = ids.get(state);
+        return (id != null) ? id : -1;
+    }
+
+    private synchronized int register(T state) {
+        Integer id = ids.get(state);
+        if (id != null) return id;
+
+        int newId = nextId;
+        Object[] arr = states;
+        if (newId == arr.length)
+            arr = Arrays.copyOf(arr, arr.length * 2);
+        arr[newId] = state;
+        states = arr;
+        ids.put(state, newId);
+        nextId = newId + 1;
+        return newId;
+    }
+
+    /** Assign the given id to the state, e.g. to rebuild the registry of
+     * another process from its dictionary. The state keeps its first id if it
+     * is already registered.
+     * @param id    Id to assign.
+     * @param state Event state.
+     **/
+    synchronized void define(int id, T state) {
+        Object[] arr = states;
+        if (id >= arr.length)
+            arr = Arrays.copyOf(arr, Math.max(arr.length * 2, id + 1));
+        arr[id] = state;
+        states = arr;
+        if (state != null)
+            ids.putIfAbsent(state, id);
+        if (id >= nextId)
+            nextId = id + 1;
+    }
+
+    /** Return the state with the given id.
+     * @param  id Id returned by {@code idOf}.
+     * @return    Event state.
+     **/
+    @SuppressWarnings("unchecked")
+    public T stateOf(int id) {
+        return (T)states[id];
+    }
+
+    /** Return the number of registered states, including the null state.
+     * @return Number of ids in use.
+     **/
+    public int size() {
+        return nextId;
+    }
+}
@@ -0,0 +1,182 @@
+package eventpassport;
+
+import java.util.concurrent.atomic.*;
+
+/** A thread-safe passport for the cases when many threads stamp into the same
+ * passport at once, e.g. scatter-gather requests. Like
+ * {@link java.util.concurrent.atomic.LongAdder}, it starts with a single lane
+ * and, when stamping threads collide on the same lane, splits into more lanes
+ * that threads pick by a per-thread probe. Each lane is an independent chunked
+ * log, so threads in different lanes don't contend on the counter or the cache
+ * lines of the chunks.
+ *
+ * Readers merge the lanes by timestamp, except that the initial event always
+ * comes first. Events with equal timestamps are ordered by lane, and the
+ * events of one lane keep their stamping order. Event
+ * indices refer to positions in the merged sequence, so they are only stable
+ * once no more stamps are made.
+ * @param <T> Type of the event states that could be stamped into the passport.
+ **/
+public class StripedPassport<T> extends AbstractPassport<T> {
+
+    /** Roughly the number of CPUs, as in LongAdder, but at least two lanes
+     * since threads can also collide after being preempted mid-stamp. **/
+    private static final int MAX_LANES =
+        Math.max(2, Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1)));
+
+    /** Per-thread lane probe, shared by all striped passports. Changed when the
+     * thread collides with another one. **/
+    private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[] {(int)Thread.currentThread().getId() * 0x9E3779B9};
+            }
+        };
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<StripedPassport, Passport[]> LANES =
+        AtomicReferenceFieldUpdater.newUpdater(StripedPassport.class, Passport[].class, "lanes");
+
+    /** Lanes of events; the length is a power of two. **/
+    private volatile Passport<T>[] lanes;
+
+    /** Construct a new passport with an initial state.
+     * @param initState Initial state (first stamp). Can be null.
+     **/
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public StripedPassport(T initState) {
+        Passport<T> first = new Passport<>(Passport.DEFAULT_FIRST_CHUNK_SHIFT, false);
+        first.append(initState, System.nanoTime());
+        lanes = new Passport[] {first};
+    }
+
+    /** Return the current number of lanes.
+     * @return Number of lanes.
+     **/
+    public int laneCount() {
+        return lanes.length;
+    }
+
+    @Override
+    public StripedPassport<T> stamp(T state) {
+        return stamp(state, System.nanoTime());
+    }
+
+    @Override
+    public StripedPassport<T> stamp(T state, long timestamp) {
+        int[] probe = PROBE.get();
+        Passport<T>[] ls = lanes;
+        Passport<T> lane = ls[probe[0] & (ls.length - 1)];
+        if (lane.tryAppend(state, timestamp))
+            return this;
+
+        // Collision: move this thread to another lane, add lanes if possible,
+        // and stamp unconditionally so that the stamp never retries.
+        int h = probe[0];
+        h ^= h << 13; h ^= h >>> 17; h ^= h << 5;
+        probe[0] = h;
+        if (ls.length < MAX_LANES)
+            grow(ls);
+        ls = lanes;
+        ls[h & (ls.length - 1)].append(state, timestamp);
+        return this;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void grow(Passport<T>[] ls) {
+        Passport<T>[] newLanes = new Passport[ls.length * 2];
+        System.arraycopy(ls, 0, newLanes, 0, ls.length);
+        // Added lanes are stamped concurrently with each other, so their
+        // counters must not share cache lines.
+        for (int i = ls.length; i < newLanes.length; i++)
+            newLanes[i] = new Passport<>(Passport.DEFAULT_FIRST_CHUNK_SHIFT, true);
+        // If somebody else has already grown the lanes, ours are discarded.
+        LANES.compareAndSet(this, ls, newLanes);
+    }
+
+    @Override
+    public EventCursor<T> cursor(int startFrom) {
+        Passport<T>[] ls = lanes;
+        if (ls.length == 1)
+            return ls[0].cursor(startFrom);
+        MergeCursor c = new MergeCursor(ls);
+        c.skip(Math.max(startFrom, 0));
+        return c;
+    }
+
+    /** Cursor that merges the lanes by timestamp. The initial event is the
+     * first event of the first lane, and it is returned first even if later
+     * events have earlier explicit timestamps. **/
+    private final class MergeCursor extends EventCursor<T> {
+
+        private final Passport<T>[] ls;
+        private final EventCursor<T>[] heads;
+        private final boolean[] hasHead;
+        private boolean initPending = true;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        MergeCursor(Passport<T>[] ls) {
+            this.ls = ls;
+            index = -1;
+            heads = new EventCursor[ls.length];
+            hasHead = new boolean[ls.length];
+            for (int i = 0; i < ls.length; i++) {
+                heads[i] = ls[i].cursor(0);
+                hasHead[i] = heads[i].next();
+            }
+        }
+
+        /** Return the lane of the next event, or -1 if there are none. **/
+        private int nextLane() {
+            if (initPending) {
+                initPending = false;
+                if (hasHead[0])
+                    return 0;
+            }
+            int min = -1;
+            for (int i = 0; i < heads.length; i++) {
+                if (hasHead[i] && (min < 0 || heads[i].timestamp < heads[min].timestamp))
+                    min = i;
+            }
+            return min;
+        }
+
+        @Override
+        public boolean next() {
+            int lane = nextLane();
+            if (lane < 0)
+                return false;
+            index++;
+            state = heads[lane].state;
+            timestamp = heads[lane].timestamp;
+            hasHead[lane] = heads[lane].next();
+            return true;
+        }
+
+        /** Move past the given number of events. Once a single lane has
+         * events left, its cursor jumps over the rest directly. **/
+        void skip(int n) {
+            while (n > 0) {
+                int only = -1, remaining = 0;
+                for (int i = 0; i < heads.length; i++) {
+                    if (hasHead[i]) {
+                        only = i;
+                        remaining++;
+                    }
+                }
+                if (remaining == 0)
+                    return;
+                if (remaining == 1 && !initPending) {
+                    heads[only] = ls[only].cursor(heads[only].index + n);
+                    hasHead[only] = heads[only].next();
+                    index += n;
+                    return;
+                }
+                int lane = nextLane();
+                hasHead[lane] = heads[lane].next();
+                index++;
+                n--;
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package eventpassport;
+
+/** Receives the in-flight passports that {@link PassportRegistry#scan} finds
+ * idle for longer than the threshold.
+ * @param <T> Type of the event states.
+ **/
+@FunctionalInterface
+public interface StuckPassportListener<T> {
+
+    /** Called for every stuck passport. Called on the scanning thread while
+     * the passport may still be stamped concurrently.
+     * @param passport  Stuck passport.
+     * @param lastState State of the last published event.
+     * @param idleNs    Time since the last published event in nanoseconds.
+     **/
+    void stuck(AbstractPassport<T> passport, T lastState, long idleNs);
+}
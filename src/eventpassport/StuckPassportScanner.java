@@ -0,0 +1,129 @@
+package eventpassport;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** Scans a {@link PassportRegistry} for stuck passports periodically on a
+ * background thread.
+ *
+ * <pre>{@code
+ * StuckPassportScanner<String> scanner = new StuckPassportScanner<>(
+ *     registry, TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(1),
+ *     (p, state, idleNs) -> log.warn("Stuck in {} for {}ms:\n{}", state, idleNs / 1000000, p));
+ * scanner.start();
+ * }</pre>
+ *
+ * A passport keeps being reported on every scan while it stays stuck.
+ * Exceptions thrown by the listener or the scan are counted and don't stop
+ * the scanner. A scan that overruns the period delays the next one rather
+ * than being followed by back-to-back scans.
+ * @param <T> Type of the event states.
+ **/
+public class StuckPassportScanner<T> implements AutoCloseable {
+
+    private final PassportRegistry<T> registry;
+    private final long thresholdNs;
+    private final long periodNs;
+    private final StuckPassportListener<T> listener;
+
+    private final AtomicLong scans = new AtomicLong(0);
+    private final AtomicLong reported = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /** Construct a scanner. The scanner thread is started by {@link #start()}.
+     * @param registry    Registry to scan.
+     * @param thresholdNs Minimal idle time of a stuck passport in nanoseconds.
+     * @param periodNs    Time between scans in nanoseconds.
+     * @param listener    Listener to report the stuck passports to.
+     **/
+    public StuckPassportScanner(PassportRegistry<T> registry, long thresholdNs, long periodNs,
+                                StuckPassportListener<T> listener) {
+        if (periodNs <= 0)
+            throw new IllegalArgumentException("periodNs must be positive: " + periodNs);
+        this.registry = registry;
+        this.thresholdNs = thresholdNs;
+        this.periodNs = periodNs;
+        this.listener = listener;
+        thread = new Thread(this::run, "passport-scanner");
+        thread.setDaemon(true);
+    }
+
+    /** Start the scanner thread.
+     * @return This object.
+     **/
+    public StuckPassportScanner<T> start() {
+        thread.start();
+        return this;
+    }
+
+    private void run() {
+        long next = System.nanoTime() + periodNs;
+        while (running) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            try {
+                reported.addAndGet(registry.scan(thresholdNs, this::report));
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+            }
+            scans.incrementAndGet();
+            long now = System.nanoTime();
+            next += periodNs;
+            if (next - now < 0)
+                next = now + periodNs;
+        }
+    }
+
+    private void report(AbstractPassport<T> passport, T lastState, long idleNs) {
+        try {
+            listener.stuck(passport, lastState, idleNs);
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+        }
+    }
+
+    /** Stop the scanner thread and wait for the running scan to finish. If
+     * the calling thread is interrupted while waiting, it returns early with
+     * the interrupt flag set.
+     **/
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            if (thread.isAlive())
+                thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Return the number of completed scans.
+     * @return Scan count.
+     **/
+    public long getScanCount() {
+        return scans.get();
+    }
+
+    /** Return the number of stuck passports reported, counting a passport
+     * once per scan.
+     * @return Reported passport count.
+     **/
+    public long getReportedCount() {
+        return reported.get();
+    }
+
+    /** Return the number of reports where the listener threw an exception,
+     * plus the number of scans that failed.
+     * @return Failed report count.
+     **/
+    public long getFailedCount() {
+        return failed.get();
+    }
+}
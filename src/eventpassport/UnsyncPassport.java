@@ -0,0 +1,108 @@
+package eventpassport;
+
+import java.util.Arrays;
+
+/** A passport for the cases when all stamps are made by a single thread, e.g.
+ * an event loop that owns the unit of work. It keeps events in plain growable
+ * arrays and performs no atomic operations when stamping, which makes stamps
+ * several times cheaper than in the thread-safe {@link Passport}.
+ *
+ * The passport can be read by other threads only after the owner thread has
+ * called {@link #freeze()} and handed the passport over. Freezing publishes
+ * all recorded events with a single volatile write; stamping after that
+ * throws IllegalStateException.
+ * @param <T> Type of the event states that could be stamped into the passport.
+ **/
+public class UnsyncPassport<T> extends AbstractPassport<T> {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private Object[] states = new Object[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private int count;
+
+    /** Number of events at the moment of freezing, or -1 if the passport is
+     * not frozen yet. The write in {@code freeze()} and the read in
+     * {@code cursor()} make the events visible to other threads. **/
+    private volatile int frozenCount = -1;
+    /** Plain copy of the frozen flag for the owner thread, so that stamping
+     * doesn't read the volatile field. **/
+    private boolean frozen;
+
+    /** Construct a new passport with an initial state.
+     * @param initState Initial state (first stamp). Can be null.
+     **/
+    public UnsyncPassport(T initState) {
+        append(initState, System.nanoTime());
+    }
+
+    @Override
+    public UnsyncPassport<T> stamp(T state) {
+        return stamp(state, System.nanoTime());
+    }
+
+    /** Record an event. Must only be called by the owner thread.
+     * @param  state     Event state.
+     * @param  timestamp Event timestamp.
+     * @return           This object (for fluent interface).
+     * @throws IllegalStateException If the passport is frozen.
+     **/
+    @Override
+    public UnsyncPassport<T> stamp(T state, long timestamp) {
+        if (frozen)
+            throw new IllegalStateException("Passport is stamped after it was frozen");
+        append(state, timestamp);
+        return this;
+    }
+
+    private void append(T state, long timestamp) {
+        int idx = count;
+        if (idx == states.length) {
+            states = Arrays.copyOf(states, idx * 2);
+            timestamps = Arrays.copyOf(timestamps, idx * 2);
+        }
+        states[idx] = state;
+        timestamps[idx] = timestamp;
+        count = idx + 1;
+    }
+
+    /** Make the passport read-only and safely publish its events to other
+     * threads. The passport can't be stamped after this call.
+     * @return This object (for fluent interface).
+     **/
+    public UnsyncPassport<T> freeze() {
+        frozen = true;
+        frozenCount = count;
+        return this;
+    }
+
+    /** Return true if {@code freeze()} has been called on this passport.
+     * @return True if the passport is frozen.
+     **/
+    public boolean isFrozen() {
+        return frozenCount >= 0;
+    }
+
+    @Override
+    public EventCursor<T> cursor(int startFrom) {
+        int frozen = frozenCount;
+        final int end = (frozen >= 0) ? frozen : count;
+        final Object[] states = this.states;
+        final long[] timestamps = this.timestamps;
+
+        EventCursor<T> c = new EventCursor<T>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public boolean next() {
+                    if (index + 1 >= end)
+                        return false;
+                    index++;
+                    state = (T)states[index];
+                    timestamp = timestamps[index];
+                    return true;
+                }
+            };
+        c.index = Math.max(startFrom, 0) - 1;
+        return c;
+    }
+}
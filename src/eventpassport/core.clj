@@ -8,7 +8,7 @@
   (time-between passport :foo :bar) -
          return time difference in nanoseconds between :foo and :bar.
   (print-passport passport) - print all stamps in the passport to stdout."
-  (:import eventpassport.Passport))
+  (:import (eventpassport AbstractPassport Passport)))
 
 (defn make-passport
   "Create a new passport with the given `init-state` (which can be nil)."
@@ -19,7 +19,7 @@
 
 (defn stamp
   "Put a stamp in the passport, marking its new state at the current time."
-  ^Passport [^Passport passport, state]
+  ^AbstractPassport [^AbstractPassport passport, state]
   (.stamp passport state))
 
 #_(stamp (make-passport :kyiv) :warsaw)
@@ -28,12 +28,12 @@
   "Return a time in nanoseconds between two states in the passport. Return -1 if
   either state is not found, or if the second state is earlier than the first,
   or if passport is nil."
-  ^long [^Passport passport, state-from state-to]
+  ^long [^AbstractPassport passport, state-from state-to]
   (.timeBetween passport state-from state-to))
 
 (defn print-passport
   "Print the formatted passort to *out* for debugging."
-  [^Passport passport]
+  [^AbstractPassport passport]
   (println (str passport)))
 
 
@@ -4,7 +4,7 @@
             [clojure.test.check.generators :as gen]
             [clojure.test.check.properties :as tc.prop]
             [eventpassport.core :as sut])
-  (:import eventpassport.Event))
+  (:import (eventpassport AbstractPassport Event InternedPassport StateRegistry StripedPassport)))
 
 (deftest basic-passport-operations
   (let [p (sut/make-passport :first)]
@@ -34,3 +34,100 @@
          (is (= state-freqs (reduce (fn [m state] (assoc m state number-of-ops))
                                     {:init 1}
                                     states-by-thread))))))))
+
+(deftest concurrent-readers-see-only-written-events
+  (let [passport (sut/make-passport :init)
+        writers (doall (for [t (range 8)]
+                         (future (dotimes [i 20000]
+                                   (.stamp passport t (inc i))))))
+        bad (atom 0)]
+    (while (not-every? realized? writers)
+      (doseq [^Event e (.getEvents passport)]
+        (when (or (nil? (.state e)) (zero? (.timestamp e)))
+          (swap! bad inc))))
+    (is (zero? @bad))
+    (is (= (inc (* 8 20000)) (count (.getEvents passport))))))
+
+(deftest interned-passport
+  (let [registry (StateRegistry.)
+        p (InternedPassport. registry :init)
+        reference (sut/make-passport :init)
+        init-ts #(.timestamp ^Event (first (.getEvents ^AbstractPassport %)))
+        p0 (init-ts p)
+        ref0 (init-ts reference)
+        states [:a :b :c :a :d :b :c :init]
+        ;; Both passports get the same offsets from their initial events.
+        offsets (map #(+ 3 (* 7 % %)) (range 1 (inc (count states))))
+        tuples (fn [^AbstractPassport ps t0]
+                 (map (fn [^Event e] [(.state e) (.index e) (- (.timestamp e) t0)])
+                      (.getEvents ps)))]
+    (doseq [[s offset] (map vector states offsets)]
+      (.stamp p s (long (+ p0 offset)))
+      (.stamp reference s (long (+ ref0 offset))))
+    (is (= (tuples reference ref0) (tuples p p0)))
+    (doseq [from (conj states :missing), to (conj states :missing)]
+      (is (= (sut/time-between reference from to)
+             (sut/time-between p from to))
+          [from to]))
+    (is (= 4 (.index (.findEventByState p :a 2))))
+    (is (nil? (.findEventByState p :missing)))
+    (is (= 6 (.size registry))))) ;; Including nil.
+
+(deftest striped-passport
+  (let [threads 32
+        number-of-ops 2000
+        p (StripedPassport. :init)]
+    (dorun (pmap (fn [state]
+                   (dotimes [_ number-of-ops]
+                     (sut/stamp p state)))
+                 (range threads)))
+    (let [events (.getEvents p)]
+      (is (= (frequencies (map #(.state ^Event %) events))
+             (reduce #(assoc %1 %2 number-of-ops) {:init 1} (range threads))))
+      (is (= (range (count events)) (map #(.index ^Event %) events)))
+      (is (= :init (.state ^Event (first events))))
+      (is (= 5 (.index (.findEventByState p (.state ^Event (nth events 5)) 5))))
+      (is (<= 0 (sut/time-between p :init 0))))
+
+    (testing "merged lanes"
+      (let [p (StripedPassport. :init)
+            lanes-field (doto (.getDeclaredField StripedPassport "lanes") (.setAccessible true))
+            grow (doto (.getDeclaredMethod StripedPassport "grow"
+                                           (into-array Class [(class (.get lanes-field p))]))
+                   (.setAccessible true))]
+        (.invoke grow p (object-array [(.get lanes-field p)]))
+        (is (= 2 (.laneCount p)))
+        ;; Threads land on lanes by their probe, so a few threads fill both.
+        (run! deref (mapv (fn [t] (future (dotimes [i 50] (.stamp p t (long (+ 1000 (* 8 i) t))))))
+                          (range 8)))
+        (.stamp p :early (long 0))
+        (let [events (.getEvents p)]
+          (testing "the initial event stays first"
+            (is (= :init (.state ^Event (first events))))
+            (is (.endsWith (first (clojure.string/split-lines (str p))) " - :init")))
+          (is (= 402 (count events))))
+        (testing "cursor skips to startFrom"
+          (let [events (mapv (juxt #(.state ^Event %) #(.timestamp ^Event %) #(.index ^Event %))
+                             (.getEvents p))
+                n (count events)]
+            (doseq [from [0 1 2 5 100 (- n 3) n (+ n 5)]]
+              (let [c (.cursor p (int from))]
+                (is (= (drop from events)
+                       (loop [acc []]
+                         (if (.next c)
+                           (recur (conj acc [(.getState c) (.getTimestamp c) (.getIndex c)]))
+                           acc)))
+                    from)))))))
+
+    (testing "cursor skips to startFrom"
+      (let [events (mapv (juxt #(.state ^Event %) #(.timestamp ^Event %) #(.index ^Event %))
+                         (.getEvents p))
+            n (count events)]
+        (doseq [from [0 1 5 100 (- n 3) n (+ n 5)]]
+          (let [c (.cursor p (int from))]
+            (is (= (drop from events)
+                   (loop [acc []]
+                     (if (.next c)
+                       (recur (conj acc [(.getState c) (.getTimestamp c) (.getIndex c)]))
+                       acc)))
+                from)))))))
@@ -1,6 +1,14 @@
 (ns eventpassport.java-passport-test
   (:require [clojure.test :refer :all])
-  (:import (eventpassport Passport StateEnum)))
+  (:import (eventpassport BoundedPassport CompactPassport DurationQuery DurationRecorder
+                         AbstractPassport EnumPassport EventVisitor JournalReader OffHeapPassport OffHeapSlab
+                         Passport PassportCodec PassportCursor PassportExporter PassportFactory
+                         PassportFormatter PassportJournal PassportPool PassportRegistry StuckPassportListener
+                         StuckPassportScanner PassportSink StateEnum StateRegistry UnsyncPassport)
+           java.lang.management.ManagementFactory
+           (java.nio.file Files Path)
+           java.nio.file.attribute.FileAttribute
+           java.util.concurrent.TimeUnit))
 
 (deftest basic-passport-operations
   (let [p (Passport. StateEnum/INIT)]
@@ -71,3 +79,779 @@
             d2 (- (.timestamp ev4) (.timestamp ev3))]
         (is (< 8e6 d1 20e6))
         (is (< 8e7 d2 20e7))))))
+
+(deftest enum-passport-operations
+  (let [p (EnumPassport. StateEnum StateEnum/INIT)
+        reference (Passport. StateEnum/INIT)
+        states [StateEnum/CONNECTION_OPENED StateEnum/DOWNSTREAM_REQ1_SENT
+                StateEnum/DOWNSTREAM_RESP1_RECEIVED StateEnum/DOWNSTREAM_REQ1_SENT
+                StateEnum/DOWNSTREAM_RESP1_RECEIVED StateEnum/CONNECTION_OPENED
+                StateEnum/CONNECTION_CLOSED]]
+    (doseq [[i s] (map-indexed vector states)]
+      (.stamp p s (long i))
+      (.stamp reference s (long i)))
+
+    (testing "results match the generic implementation"
+      (doseq [from (StateEnum/values), to (StateEnum/values)]
+        (when-not (= from StateEnum/INIT) ;; INIT has a real nanoTime timestamp
+          (is (= (.timeBetween reference from to) (.timeBetween p from to))
+              (str from " -> " to))))
+      (doseq [s (StateEnum/values), start (range 10)]
+        (let [e1 (.findEventByState reference s start)
+              e2 (.findEventByState p s start)]
+          (is (= (some-> e1 .index) (some-> e2 .index))
+              (str s " from " start)))))
+
+    (testing "repeated states"
+      (is (= 1 (.timeBetween p StateEnum/DOWNSTREAM_REQ1_SENT StateEnum/DOWNSTREAM_RESP1_RECEIVED)))
+      (is (= 2 (.timeBetween p StateEnum/DOWNSTREAM_RESP1_RECEIVED StateEnum/DOWNSTREAM_RESP1_RECEIVED)))
+      (is (= 3 (.timeBetween p StateEnum/DOWNSTREAM_RESP1_RECEIVED StateEnum/CONNECTION_OPENED)))
+      (is (= -1 (.timeBetween p StateEnum/CONNECTION_CLOSED StateEnum/CONNECTION_OPENED)))
+      (is (= -1 (.timeBetween p StateEnum/TEARDOWN StateEnum/CONNECTION_OPENED))))))
+
+(deftest chunk-boundaries
+  (let [p (Passport. -1)
+        n 5000]
+    (dotimes [i n] (.stamp p i (long i)))
+    (is (= (range -1 n) (map #(.state %) (.getEvents p))))
+    (is (= (range (inc n)) (map #(.index %) (.getEvents p))))
+    (doseq [i [0 6 7 8 23 24 55 56 120 4095 (dec n)]]
+      (is (= (inc i) (.index (.findEventByState p i))))
+      (is (= i (.timestamp (.findEventByState p i (inc i)))))
+      (is (nil? (.findEventByState p i (+ i 2))))
+      (is (= (if (= i (dec n)) -1 1) (.timeBetween p i (inc i)))))))
+
+(deftest padded-layout
+  (let [p (Passport. -1 true)
+        reference (Passport. -1)
+        n 5000
+        tuples (fn [p] (rest (map (juxt #(.state %) #(.timestamp %) #(.index %)) (.getEvents p))))]
+    (dotimes [i n]
+      (.stamp p i (long i))
+      (.stamp reference i (long i)))
+    (is (= (tuples reference) (tuples p)))
+    (doseq [i [0 7 8 23 24 4095 (dec n)]]
+      (is (= (.index (.findEventByState reference i)) (.index (.findEventByState p i))))
+      (is (= (.timeBetween reference i (inc i)) (.timeBetween p i (inc i))))))
+
+  (testing "concurrent stamping"
+    (let [p (Passport. :init true)]
+      (run! deref (mapv (fn [t] (future (dotimes [_ 1000] (.stamp p t)))) (range 8)))
+      (is (= (merge {:init 1} (zipmap (range 8) (repeat 1000)))
+             (frequencies (map #(.state %) (.getEvents p))))))))
+
+(defn- thread-allocated-bytes ^long []
+  (.getThreadAllocatedBytes
+   ^com.sun.management.ThreadMXBean (ManagementFactory/getThreadMXBean)
+   (.getId (Thread/currentThread))))
+
+(deftest queries-do-not-allocate
+  (let [^Passport p (Passport. StateEnum/INIT)
+        ^DurationQuery dq (-> (DurationQuery/builder)
+                              (.pair StateEnum/INIT StateEnum/UPSTREAM_RECEIVED)
+                              (.pair StateEnum/CONNECTION_OPENED StateEnum/TEARDOWN)
+                              (.build))
+        ^longs out (long-array 2)
+        query (fn []
+                (dotimes [_ 10000]
+                  (.timeBetween p StateEnum/INIT StateEnum/TEARDOWN)
+                  (.findEventByState p StateEnum/TEARDOWN 0)
+                  ;; Start index far beyond the last chunk.
+                  (.findEventByState p StateEnum/INIT 1000000)
+                  (.evaluate dq p out)))]
+    (doseq [s (take 100 (cycle [StateEnum/CONNECTION_OPENED StateEnum/UPSTREAM_RECEIVED]))]
+      (.stamp p s))
+    ;; Let evaluate see several passport types, as it would in an application
+    ;; that uses more than one.
+    (dotimes [_ 10000]
+      (doseq [other [(UnsyncPassport. StateEnum/INIT) (CompactPassport. StateEnum/INIT)
+                     (BoundedPassport. StateEnum/INIT 4)]]
+        (.evaluate dq other out)))
+    (query) ;; Warm up.
+    (let [before (thread-allocated-bytes)
+          _ (query)
+          allocated (- (thread-allocated-bytes) before)]
+      ;; A single chunk allocation would take more than this.
+      (is (< allocated 1024)))))
+
+(deftest event-iteration
+  (doseq [p [(Passport. -1) (EnumPassport. StateEnum StateEnum/INIT)
+             (BoundedPassport. -1 16) (UnsyncPassport. -1) (CompactPassport. -1)]]
+    (let [states (if (instance? EnumPassport p)
+                   (take 40 (cycle [StateEnum/CONNECTION_OPENED StateEnum/TEARDOWN]))
+                   (range 40))
+          _ (doseq [s states] (.stamp p s))
+          expected (map (juxt #(.state %) #(.timestamp %) #(.index %)) (.getEvents p))
+          visited (atom [])]
+      (.forEach p (reify EventVisitor
+                    (visit [_ s ts i] (swap! visited conj [s ts i]))))
+      (is (= expected @visited))
+      (let [c (.cursor p)]
+        (is (= expected (loop [acc []]
+                          (if (.next c)
+                            (recur (conj acc [(.getState c) (.getTimestamp c) (.getIndex c)]))
+                            acc)))))))
+
+  (testing "PassportCursor is reusable across passports"
+    (let [c (PassportCursor.)
+          p1 (doto (Passport. :a) (.stamp :b))
+          p2 (doto (Passport. :c (int 1)) (.stamp :d) (.stamp :e))
+          states #(loop [acc []] (if (.next ^PassportCursor %) (recur (conj acc (.getState ^PassportCursor %))) acc))]
+      (is (not (.next c)))
+      (is (= [:a :b] (states (.reset c p1))))
+      (is (= [:c :d :e] (states (.reset c p2))))
+      (is (= [:d :e] (states (.reset c p2 1))))
+      (is (= [] (states (.reset c p1 5))))))
+
+  (testing "iteration doesn't allocate"
+    (let [^Passport p (Passport. StateEnum/INIT)
+          c (PassportCursor.)
+          sum (long-array 1)
+          ;; Returns nil so that the result of aset isn't boxed.
+          visitor (reify EventVisitor
+                    (visit [_ s ts i] (aset sum 0 (unchecked-add (aget sum 0) ts)) nil))
+          iterate (fn []
+                    (dotimes [_ 10000]
+                      (.forEach p visitor)
+                      (.reset c p)
+                      (while (.next c))))]
+      (dotimes [_ 100] (.stamp p StateEnum/CONNECTION_OPENED))
+      (iterate) ;; Warm up.
+      (let [before (thread-allocated-bytes)
+            _ (iterate)
+            allocated (- (thread-allocated-bytes) before)]
+        (is (< allocated 1024))))))
+
+(deftest streams
+  (let [p (Passport. -1)
+        n 5000]
+    (dotimes [i n] (.stamp p (mod i 3) (long i)))
+    (let [spliterator (.spliterator p)
+          _ (is (.hasCharacteristics spliterator java.util.Spliterator/SIZED))
+          _ (is (= (inc n) (.estimateSize spliterator)))
+          prefix (.trySplit spliterator)]
+      ;; Split at the chunk boundary closest to the middle.
+      (is (= 2040 (.estimateSize prefix)))
+      (is (= 2961 (.estimateSize spliterator))))
+    (is (= (range (inc n)) (map #(.index ^eventpassport.Event %) (.toArray (.parallel (.stream p))))))
+    (is (= (filter #(= 1 (mod % 3)) (range n))
+           (vec (.toArray (.parallel (.timestamps p 1))))
+           (vec (.toArray (.timestamps p 1)))))
+    (is (= [] (vec (.toArray (.timestamps p 5))))))
+
+  (testing "default implementation"
+    (doseq [p [(UnsyncPassport. -1) (BoundedPassport. -1 1000)]]
+      (dotimes [i 500] (.stamp p (mod i 2) (long i)))
+      (is (= (range 501) (map #(.index ^eventpassport.Event %) (.toArray (.parallel (.stream p))))))
+      (is (= (range 0 500 2) (vec (.toArray (.timestamps p 0))))))))
+
+(defn- reference-format
+  "The formatting that PassportFormatter replaced, built on String/format."
+  [issued-ms events]
+  (let [issued (str (java.time.Instant/ofEpochMilli issued-ms))
+        [[first-state first-time] & more] events
+        fmt (str "\n%" (count issued) "s - %s")
+        delta (fn [^long d]
+                (cond (< d 1000) (str d "ns")
+                      (< d 1000000) (str (quot d 1000) "us")
+                      :else (str (quot d 1000000) "ms")))]
+    (apply str issued " - " (if (nil? first-state) "<created>" first-state)
+           (for [[state ts] more]
+             (String/format fmt (object-array [(str "+" (delta (unchecked-subtract ts first-time)))
+                                               state]))))))
+
+(deftest passport-formatter
+  (let [f (PassportFormatter.)
+        issued-field (doto (.getDeclaredField AbstractPassport "issuedTimeMs")
+                       (.setAccessible true))]
+    (doseq [issued-ms [1692704654042 1692704654000 1692704654007 1692704655120 -1 253402300800000]
+            init [:init nil]
+            ;; Offsets from the initial timestamp.
+            offsets [[]
+                     [0 999 1000 1005 999999 1000000 123456789012 nil :a]
+                     [-1 -5000000000 Long/MIN_VALUE Long/MAX_VALUE]]]
+      (let [p (Passport. init)
+            t0 (.timestamp (first (.getEvents p)))]
+        (.setLong issued-field p issued-ms)
+        (doseq [[i o] (map-indexed vector offsets)]
+          (.stamp p (if (number? o) i o) (unchecked-add t0 (if (number? o) (long o) 1))))
+        (is (= (reference-format issued-ms (map (juxt #(.state %) #(.timestamp %)) (.getEvents p)))
+               (.format f p)
+               (.toString p)
+               (str (.format f p (StringBuilder.)))
+               (let [w (java.io.StringWriter.)] (.format f p w) (str w))))))))
+
+(defn- event-tuples [p]
+  (map (juxt #(.state %) #(.timestamp %) #(.index %)) (.getEvents p)))
+
+(deftest passport-codec
+  (let [codec (PassportCodec. (StateRegistry.))
+        p1 (doto (Passport. :init)
+             (.stamp :a) (.stamp nil) (.stamp :b) (.stamp :a))
+        p2 (doto (Passport. nil)
+             (.stamp :x 0) (.stamp :y -1) (.stamp :z Long/MIN_VALUE) (.stamp :w Long/MAX_VALUE))]
+    (doseq [buf [(java.nio.ByteBuffer/allocate 1024) (java.nio.ByteBuffer/allocateDirect 1024)]]
+      (.encode codec p1 buf)
+      (.encode codec p2 buf)
+      (.flip buf)
+      (let [d1 (.decode codec buf)
+            d2 (.decode codec buf)]
+        (is (not (.hasRemaining buf)))
+        (is (= (event-tuples p1) (event-tuples d1)))
+        (is (= (event-tuples p2) (event-tuples d2)))
+        (is (= (str p1) (str d1)))
+        (is (= (.timeBetween p1 :a :b) (.timeBetween d1 :a :b)))
+        (is (= 4 (.index (.findEventByState d1 :a 2))))
+        (is (= [[:b 3] [:a 4]] (let [c (.cursor d1 3)]
+                                 (loop [acc []]
+                                   (if (.next c)
+                                     (recur (conj acc [(.getState c) (.getIndex c)]))
+                                     acc)))))
+        (is (thrown? UnsupportedOperationException (.stamp d1 :c)))))
+
+    (testing "a passport that doesn't fit leaves the buffer unchanged"
+      (let [buf (doto (java.nio.ByteBuffer/allocate 10) (.put (byte 7)))]
+        (is (thrown? java.nio.BufferOverflowException (.encode codec p1 buf)))
+        (is (= 1 (.position buf)))))
+
+    (testing "events take a few bytes each"
+      (let [p (Passport. :init)
+            buf (java.nio.ByteBuffer/allocate 4096)]
+        (dotimes [_ 99] (.stamp p :a))
+        (is (< (.encode codec p buf) 400))))
+
+    (is (thrown? IllegalArgumentException
+                 (.decode codec (java.nio.ByteBuffer/wrap (byte-array [2 0 0 0 0])))))
+    (is (thrown? java.nio.BufferUnderflowException
+                 (.decode codec (java.nio.ByteBuffer/wrap (byte-array [1 0 0 0 9 0])))))
+
+    (testing "corrupt passports fail decoding"
+      (let [decode #(.decode codec (java.nio.ByteBuffer/wrap (byte-array (concat [1 0 0 0 (count %)] %))))]
+        ;; Varint longer than 10 bytes.
+        (is (thrown? IllegalArgumentException (decode (concat [0] (repeat 11 -1) [0]))))
+        ;; Unknown state id.
+        (is (thrown? IllegalArgumentException (decode [0 100 0])))
+        ;; Event cut after the id.
+        (is (thrown? IllegalArgumentException (decode [0 1])))
+        (is (thrown? IllegalArgumentException (decode [])))
+        (is (= [[:init 0 0]] (event-tuples (decode [0 1 0]))))))
+
+    (testing "ids unknown to the decoding registry"
+      (let [buf (java.nio.ByteBuffer/allocate 1024)]
+        (.encode codec p1 buf)
+        (.flip buf)
+        (is (thrown? IllegalArgumentException
+                     (.decode (PassportCodec. (StateRegistry.)) buf)))))))
+
+(deftest passport-exporter
+  (let [codec (PassportCodec. (StateRegistry.))
+        received (atom [])
+        ;; Decoded passports read from the reused batch buffer, so extract the
+        ;; events right away.
+        collecting (reify PassportSink
+                     (write [_ buf n]
+                       (dotimes [_ n]
+                         (swap! received conj (event-tuples (.decode codec buf))))))
+        passport (fn [i] (doto (Passport. :init) (.stamp i)))]
+    (testing "exports every submitted passport in order"
+      (let [e (.start (PassportExporter. codec collecting 64 256))
+            ps (mapv passport (range 50))]
+        (doseq [p ps] (is (.submit e p)))
+        (.close e)
+        (is (= (map event-tuples ps) @received))
+        (is (= 50 (.getSubmittedCount e) (.getExportedCount e)))
+        (is (zero? (.getDroppedCount e)))))
+
+    (testing "drops passports when the ring is full"
+      (reset! received [])
+      (let [e (PassportExporter. codec collecting 3 256)
+            ps (mapv passport (range 6))]
+        (is (= [true true true true false false] (mapv #(.submit e %) ps)))
+        (is (= 2 (.getDroppedCount e)))
+        (.start e)
+        (.close e)
+        (is (= (map event-tuples (take 4 ps)) @received))
+        (is (= 6 (.getSubmittedCount e)))))
+
+    (testing "drops passports that don't fit into a batch, counts sink failures"
+      (let [big (Passport. :init)
+            _ (dotimes [i 100] (.stamp big i))
+            e (.start (PassportExporter. codec (reify PassportSink
+                                                 (write [_ buf n] (throw (java.io.IOException.))))
+                                         16 64))]
+        (.submit e big)
+        (.submit e (passport 1))
+        (.close e)
+        (is (= 1 (.getDroppedCount e)))
+        (is (= 1 (.getFailedCount e)))
+        (is (zero? (.getExportedCount e)))))
+
+    (testing "passports that fail to encode don't stop the exporter"
+      (reset! received [])
+      (let [pool (PassportPool. 4 64 true)
+            released (doto (.acquire pool :init) (->> (.release pool)))
+            e (.start (PassportExporter. codec collecting 16 256))]
+        (.submit e (passport 1))
+        (.submit e released)
+        (.submit e (passport 2))
+        (.close e)
+        (is (= 1 (.getFailedCount e)))
+        (is (= 2 (.getExportedCount e)))
+        (is (= [[:init 1] [:init 2]] (map #(map first %) @received)))))
+
+    (testing "concurrent submitters"
+      (let [exported (atom 0)
+            e (.start (PassportExporter. codec (reify PassportSink
+                                                 (write [_ buf n] (swap! exported + n)))
+                                         128 1024))
+            p (passport 0)]
+        (->> (range 4)
+             (mapv (fn [_] (future (dotimes [_ 20000] (.submit e p)))))
+             (run! deref))
+        (.close e)
+        (is (= 80000 (.getSubmittedCount e) (+ (.getExportedCount e) (.getDroppedCount e))))
+        (is (= @exported (.getExportedCount e)))))))
+
+;; Parses the states written by the journal: keywords and longs.
+(defn- parse-state [^String s]
+  (if (.startsWith s ":") (keyword (subs s 1)) (Long/parseLong s)))
+
+;; Returns [kind events] pairs of all records in the journal directory.
+(defn- journal-records [dir]
+  (let [r (JournalReader. dir (reify java.util.function.Function (apply [_ s] (parse-state s))))]
+    (loop [acc []]
+      (if (.next r)
+        (recur (conj acc [(.getKind r) (event-tuples (.getPassport r))]))
+        acc))))
+
+(deftest passport-journal
+  (let [new-codec #(PassportCodec. (StateRegistry.))
+        temp-dir #(Files/createTempDirectory "journal" (make-array FileAttribute 0))
+        passport (fn [i] (doto (Passport. :init) (.stamp i)))
+        segment-count (fn [dir] (with-open [ds (Files/newDirectoryStream dir)] (count (seq ds))))]
+    (testing "reads back finished passports and snapshots"
+      (let [dir (temp-dir)
+            p (passport 1)]
+        (with-open [j (PassportJournal. dir (new-codec) 4096 4)]
+          (is (.appendSnapshot j p))
+          (.stamp p :done)
+          (is (.append j p)))
+        (is (= [[PassportJournal/SNAPSHOT [[:init 0] [1 1]]]
+                [PassportJournal/FINISHED [[:init 0] [1 1] [:done 2]]]]
+               (map (fn [[k es]] [k (map (fn [[s _ i]] [s i]) es)])
+                    (journal-records dir))))))
+
+    (testing "reads the states without the registry of the writer"
+      (let [dir (temp-dir)
+            ps [(passport :a) (passport 7) (doto (passport :b) (.stamp :a))]]
+        (with-open [j (PassportJournal. dir (PassportCodec. (doto (StateRegistry.) (.idOf :b) (.idOf 7))) 4096 4)]
+          (run! #(.append j %) ps))
+        (with-open [j (PassportJournal. dir (PassportCodec. (doto (StateRegistry.) (.idOf :a) (.idOf :x))) 4096 4)]
+          (run! #(.append j %) ps))
+        (is (= (map event-tuples (concat ps ps)) (map second (journal-records dir))))))
+
+    (testing "rolls segments and keeps the newest ones"
+      (let [dir (temp-dir)
+            ps (mapv #(passport (mod % 5)) (range 200))]
+        (with-open [j (PassportJournal. dir (new-codec) 256 3)]
+          (doseq [p ps] (is (.append j p))))
+        (is (= 3 (segment-count dir)))
+        (let [records (map second (journal-records dir))]
+          (is (< 20 (count records) 200))
+          (is (= (map event-tuples (take-last (count records) ps)) records)))))
+
+    (testing "keeps the segments of an earlier journal"
+      (let [dir (temp-dir)
+            codec (new-codec)]
+        (with-open [j (PassportJournal. dir codec 4096 4)]
+          (.append j (passport 1)))
+        (with-open [j (PassportJournal. dir codec 4096 4)]
+          (.append j (passport 2)))
+        (is (= 2 (segment-count dir)))
+        (is (= [1 2] (map #(first (second %)) (map second (journal-records dir)))))))
+
+    (testing "skips unfinished records"
+      (let [dir (temp-dir)
+            ps (mapv passport (range 3))]
+        (with-open [j (PassportJournal. dir (new-codec) 4096 4)]
+          (run! #(.append j %) ps))
+        (let [segment (first (iterator-seq (.iterator (Files/newDirectoryStream dir))))
+              bytes (Files/readAllBytes segment)
+              bb (java.nio.ByteBuffer/wrap bytes)
+              offsets (loop [off 0 acc []]
+                        (if (zero? (.get bb (int off)))
+                          acc
+                          (recur (+ off 6 (.getInt bb (int (+ off 2)))) (conj acc off))))]
+          ;; A dictionary record precedes each passport that registered a
+          ;; new state; zero the kind byte of the second passport.
+          (is (= [3 1 3 1 3 1] (map #(aget bytes %) offsets)))
+          (aset-byte bytes (offsets 3) 0)
+          (Files/write segment bytes (make-array java.nio.file.OpenOption 0))
+          (is (= (map event-tuples [(ps 0) (ps 2)])
+                 (map second (journal-records dir)))))))
+
+    (testing "drops passports larger than a segment"
+      (let [dir (temp-dir)
+            big (Passport. :init)]
+        (dotimes [_ 100] (.stamp big 1))
+        (with-open [j (PassportJournal. dir (new-codec) 64 2)]
+          (is (not (.append j big)))
+          (is (.append j (passport 1)))
+          (is (= 1 (.getDroppedCount j))))
+        (is (= 1 (count (journal-records dir))))))
+
+    (testing "recovers from a failed roll"
+      (let [dir (temp-dir)
+            ps (mapv #(passport (mod % 5)) (range 100))
+            blocker (.resolve dir (format "passports-%016d.journal" 1))]
+        (with-open [j (PassportJournal. dir (new-codec) 256 20)]
+          ;; The next segment can't be created where a directory is.
+          (Files/createDirectory blocker (make-array FileAttribute 0))
+          (let [appended (mapv #(.append j %) ps)]
+            (is (= 1 (.getDroppedCount j)))
+            (is (= 1 (count (remove true? appended))))
+            (Files/delete blocker)
+            (is (= (map event-tuples (keep-indexed #(when (appended %1) %2) ps))
+                   (map second (journal-records dir))))))))
+
+    (testing "large segments don't make appends allocate"
+      (let [dir (temp-dir)
+            big (Passport. :init)
+            scratch (doto (.getDeclaredField PassportJournal "scratch") (.setAccessible true))]
+        (dotimes [_ 100000] (.stamp big :event))
+        (with-open [j (PassportJournal. dir (new-codec) (* 16 1024 1024) 2)]
+          (.append j (passport 0))
+          (let [before (thread-allocated-bytes)]
+            ;; Every new state is followed by a dictionary record.
+            (dotimes [i 100] (.append j (passport (+ i 1))))
+            (is (< (- (thread-allocated-bytes) before) (* 1024 1024))))
+          ;; A passport that needs a larger buffer is appended, but its buffer
+          ;; is not kept.
+          (is (.append j big))
+          (is (<= (.capacity (.get (.get scratch j))) (* 64 1024))))
+        (is (= 102 (count (journal-records dir))))))
+
+    (testing "concurrent appenders"
+      (let [dir (temp-dir)
+            p (passport 0)]
+        (with-open [j (PassportJournal. dir (new-codec) (* 1024 1024) 2)]
+          (->> (range 4)
+               (mapv (fn [_] (future (dotimes [_ 5000] (.append j p)))))
+               (run! deref)))
+        (let [records (journal-records dir)]
+          (is (= 20000 (count records)))
+          (is (every? #(= (event-tuples p) (second %)) records)))))))
+
+(deftest passport-registry
+  (let [now (System/nanoTime)
+        old (doto (Passport. :init) (.stamp 1 (- now 2000000000)))
+        fresh (doto (Passport. :init) (.stamp :sent))
+        registry (PassportRegistry. 4)
+        collect (fn [acc] (reify StuckPassportListener
+                            (stuck [_ p state idle] (swap! acc conj [p state idle]))))]
+    (testing "last event"
+      (is (= [1 1] ((juxt #(.state %) #(.index %)) (.lastEvent old))))
+      (is (= [:b 2] ((juxt #(.state %) #(.index %))
+                     (.lastEvent (doto (UnsyncPassport. :a) (.stamp :b) (.stamp :b)))))))
+
+    (testing "reports passports idle for longer than the threshold"
+      (is (identical? old (.register registry old)))
+      (.register registry fresh)
+      (is (= 2 (.size registry)))
+      (let [found (atom [])]
+        (is (= 1 (.scan registry 1000000000 (collect found))))
+        (let [[[p state idle]] @found]
+          (is (identical? old p))
+          (is (= 1 state))
+          (is (<= 2000000000 idle))))
+      (is (= 2 (.scan registry 0 (collect (atom []))))))
+
+    (testing "deregistration"
+      (is (.deregister registry old))
+      (is (not (.deregister registry old)))
+      (is (= 1 (.size registry)))
+      (is (zero? (.scan registry 1000000000 (collect (atom []))))))
+
+    (testing "periodic scanner"
+      (.register registry old)
+      ;; From here on only `old` is registered; `fresh` could grow older than
+      ;; the threshold while the scanners run on a slow machine.
+      (is (.deregister registry fresh))
+      (let [found (atom [])
+            scanner (.start (StuckPassportScanner. registry 1000000000 1000000 (collect found)))
+            failing (.start (StuckPassportScanner. registry 1000000000 1000000
+                                                   (reify StuckPassportListener
+                                                     (stuck [_ p state idle] (throw (RuntimeException.))))))]
+        (loop [i 0]
+          (when (and (< i 500) (or (< (.getReportedCount scanner) 2) (zero? (.getFailedCount failing))))
+            (Thread/sleep 10)
+            (recur (inc i))))
+        (.close scanner)
+        (.close failing)
+        (is (<= 2 (.getScanCount scanner)))
+        (is (= (.getReportedCount scanner) (count @found)))
+        (is (every? #(identical? old (first %)) @found))
+        (is (pos? (.getFailedCount failing)))))
+
+    (testing "skips passports that can't be read"
+      (let [broken (proxy [Passport] [:init]
+                     (lastEvent [] (throw (UnsupportedOperationException.))))
+            found (atom [])]
+        (.register registry broken)
+        (is (= 1 (.scan registry 1000000000 (collect found))))
+        (is (identical? old (ffirst @found)))
+        (.deregister registry broken)))
+
+    (testing "a slow scan doesn't cause back-to-back scans"
+      (let [slow-done (promise)
+            scanner (.start (StuckPassportScanner. registry 1000000000 20000000
+                                                   (reify StuckPassportListener
+                                                     (stuck [_ p state idle]
+                                                       (when-not (realized? slow-done)
+                                                         (Thread/sleep 300)
+                                                         (deliver slow-done true))))))]
+        @slow-done
+        (Thread/sleep 30)
+        (let [scans (.getScanCount scanner)]
+          (.close scanner)
+          ;; Catching up on the missed periods would take about 15 scans.
+          (is (<= scans 4)))))))
+
+(deftest capacity-hint
+  (doseq [hint [1 3 40 5000]]
+    (let [p (Passport. -1 (int hint))
+          n 300]
+      (dotimes [i n] (.stamp p i (long i)))
+      (is (= (range -1 n) (map #(.state %) (.getEvents p))))
+      (doseq [i [0 1 2 38 39 40 63 64 (dec n)]]
+        (is (= (inc i) (.index (.findEventByState p i))))
+        (is (= i (.timestamp (.findEventByState p i (inc i))))))))
+  (is (thrown? IllegalArgumentException (Passport. :init (int 0))))
+
+  (testing "stamping within the hint doesn't allocate"
+    (let [p (Passport. StateEnum/INIT (int 1024))
+          before (thread-allocated-bytes)
+          _ (dotimes [_ 1000] (.stamp p StateEnum/CONNECTION_OPENED 1))
+          allocated (- (thread-allocated-bytes) before)]
+      ;; Growing from the default size would allocate over 12KB.
+      (is (< allocated 4096))
+      (is (= 1001 (count (.getEvents p)))))))
+
+(deftest passport-factory
+  (let [f (PassportFactory.)
+        finish (fn [n]
+                 (let [p (.create f :init)]
+                   (dotimes [_ (dec n)] (.stamp p :event))
+                   (.complete f p)))]
+    (is (= 8 (.getExpectedEvents f)))
+    (dotimes [_ 63] (finish 41))
+    (is (= 8 (.getExpectedEvents f)))
+    (finish 41)
+    (is (= 64 (.getExpectedEvents f)))
+    ;; 41 events in chunks of 8, 16 and 32.
+    (is (= 64 (.getGrownCount f)))
+    (is (= 128 (.getGrowthAllocations f)))
+
+    (dotimes [_ 128] (finish 5))
+    (is (= 64 (.getExpectedEvents f)) "p95 still falls on the large passports")
+    (is (= 64 (.getGrownCount f)))
+    (dotimes [_ 1856] (finish 5))
+    (is (= 8 (.getExpectedEvents f)) "large passports decayed below 5%")
+    (is (= 2048 (.getCreatedCount f) (.getCompletedCount f)))
+    (is (thrown? IllegalArgumentException (PassportFactory. 8 0.0)))))
+
+(deftest unsync-passport
+  (let [p (UnsyncPassport. nil)
+        reference (Passport. nil)]
+    (dotimes [i 100]
+      (let [s (StateEnum/values)
+            state (aget s (mod i (alength s)))]
+        (.stamp p state (long i))
+        (.stamp reference state (long i))))
+    (is (not (.isFrozen p)))
+    (.freeze p)
+    (is (.isFrozen p))
+    (is (thrown? IllegalStateException (.stamp p StateEnum/INIT)))
+    ;; Read from another thread after the handoff.
+    @(future
+       (is (= (map (juxt #(.state %) #(.timestamp %) #(.index %)) (rest (.getEvents reference)))
+              (map (juxt #(.state %) #(.timestamp %) #(.index %)) (rest (.getEvents p)))))
+       (is (= 101 (count (.getEvents p))))
+       (is (= 1 (.timeBetween p StateEnum/INIT StateEnum/CONNECTION_OPENED)))
+       (is (= 10 (.timeBetween p StateEnum/TEARDOWN StateEnum/TEARDOWN)))
+       (is (= 20 (.index (.findEventByState p StateEnum/TEARDOWN 11))))
+       (is (nil? (.findEventByState p StateEnum/TEARDOWN 101))))))
+
+(deftest duration-recorder
+  (let [r (DurationRecorder. StateEnum/INIT StateEnum/TEARDOWN)]
+    (dorun (pmap (fn [offset]
+                   (doseq [v (range offset 1000000 8)]
+                     (.recordValue r v)))
+                 (range 8)))
+    (let [s (.snapshot r)
+          close? (fn [expected actual]
+                   (< (Math/abs (- 1.0 (/ (double actual) expected))) 0.04))]
+      (is (= 1000000 (.getCount s)))
+      (is (= 999999 (.getMax s)))
+      (is (close? 500000 (.getP50 s)))
+      (is (close? 990000 (.getP99 s)))
+      (is (close? 999000 (.getP999 s))))
+
+    (testing "recording from passports"
+      (.snapshotAndReset r)
+      (let [p (Passport. StateEnum/INIT)]
+        (.stamp p StateEnum/TEARDOWN (+ (.timestamp (.findEventByState p StateEnum/INIT)) 12345))
+        (is (= 12345 (.record r p)))
+        (is (= -1 (.record r (Passport. StateEnum/INIT))))
+        (is (= 1 (.getCount (.snapshot r))))
+        (is (= 12345 (.getMax (.snapshot r))))))))
+
+(deftest duration-query
+  (let [states (vec (StateEnum/values))
+        pairs (for [from states, to states] [from to])
+        p (Passport. StateEnum/INIT)]
+    (doseq [[i s] (map-indexed vector (take 200 (cycle (shuffle (rest states)))))]
+      (.stamp p s (long (* i i))))
+    (doseq [batch (partition-all 64 pairs)]
+      (let [^DurationQuery q (-> (reduce (fn [b [from to]] (.pair b from to))
+                                         (DurationQuery/builder) batch)
+                                 .build)
+            out (long-array (.size q))
+            found (.evaluate q p out)]
+        (is (= (map (fn [[from to]] (.timeBetween p from to)) batch)
+               (seq out)))
+        (is (= found (count (remove #{-1} out))))))))
+
+(deftest bounded-passport
+  (let [p (BoundedPassport. :init 4)]
+    (doseq [i (range 1 11)] (.stamp p i (long i)))
+    (is (= 6 (.getDroppedCount p)))
+    (is (= [[0 :init] [7 7] [8 8] [9 9] [10 10]]
+           (map (juxt #(.index %) #(.state %)) (.getEvents p))))
+    (is (= 2 (.timeBetween p 7 9)))
+    (is (= -1 (.timeBetween p 3 9)))
+    (is (= 9 (.index (.findEventByState p 9 2))))
+    (is (nil? (.findEventByState p 9 10))))
+
+  (testing "keeps working after 2^31 stamps"
+    (let [p (BoundedPassport. :init 4)
+          start (- Integer/MAX_VALUE 2)]
+      (.set ^java.util.concurrent.atomic.AtomicLong
+            (.get (doto (.getDeclaredField BoundedPassport "stampCount") (.setAccessible true)) p)
+            start)
+      (doseq [i (range 1 11)] (.stamp p i (long i)))
+      (is (= [[0 :init] [(unchecked-int (+ start 7)) 7] [(unchecked-int (+ start 8)) 8]
+              [(unchecked-int (+ start 9)) 9] [(unchecked-int (+ start 10)) 10]]
+             (map (juxt #(.index %) #(.state %)) (.getEvents p))))
+      (is (= (+ start 6) (.getDroppedCount p)))
+      (is (= 2 (.timeBetween p 7 9)))
+      (is (= 9 (.state (.findEventByState p 9 (unchecked-int (+ start 8))))))
+      (is (nil? (.findEventByState p 8 (unchecked-int (+ start 9)))))))
+
+  (testing "concurrent readers never see torn slots"
+    (let [p (BoundedPassport. -1 64)
+          writers (doall (for [t (range 8)]
+                           (future (doseq [i (range 1 20001)]
+                                     (let [v (+ (* t 100000) i)]
+                                       (.stamp p v (long v)))))))
+          bad (atom 0)]
+      (while (not-every? realized? writers)
+        (doseq [e (rest (.getEvents p))]
+          (when-not (= (long (.state e)) (.timestamp e))
+            (swap! bad inc))))
+      (is (zero? @bad))
+      (is (<= (count (.getEvents p)) 65))
+      (is (= (inc (* 8 20000))
+             (+ (count (.getEvents p)) (.getDroppedCount p)))))))
+
+(deftest passport-pool
+  (let [pool (PassportPool. 4 64 true)
+        p (.acquire pool StateEnum/INIT)]
+    (dotimes [_ 100] (.stamp p StateEnum/CONNECTION_OPENED))
+    (.release pool p)
+
+    (testing "released passport can't be used in debug mode"
+      (is (thrown? IllegalStateException (.stamp p StateEnum/TEARDOWN)))
+      (is (thrown? IllegalStateException (.timeBetween p StateEnum/INIT StateEnum/TEARDOWN)))
+      (is (thrown? IllegalStateException (.release pool p))))
+
+    (testing "passport is reused and reset"
+      (let [p2 (.acquire pool nil)]
+        (is (identical? p p2))
+        (is (= [nil] (map #(.state %) (.getEvents p2))))
+        (.stamp p2 StateEnum/TEARDOWN)
+        (is (= [nil StateEnum/TEARDOWN] (map #(.state %) (.getEvents p2))))
+        (is (= -1 (.timeBetween p2 StateEnum/INIT StateEnum/CONNECTION_OPENED)))))
+
+    (testing "empty pool creates new passports"
+      (is (not (identical? p (.acquire pool StateEnum/INIT)))))))
+
+(deftest off-heap-passport
+  (let [slab (OffHeapSlab. 8 16)
+        registry (StateRegistry.)
+        p (OffHeapPassport. slab registry nil)
+        reference (Passport. nil)]
+    (doseq [i (range 50)]
+      (let [s (aget (StateEnum/values) (mod (* i 7) 10))]
+        (.stamp p s (long i))
+        (.stamp reference s (long i))))
+    (is (= 9 (.freeSegments slab)))
+    (is (= (map (juxt #(.state %) #(.timestamp %) #(.index %)) (rest (.getEvents reference)))
+           (map (juxt #(.state %) #(.timestamp %) #(.index %)) (rest (.getEvents p)))))
+    (doseq [from (StateEnum/values), to (StateEnum/values)]
+      (is (= (.timeBetween reference from to) (.timeBetween p from to))))
+
+    (testing "exhausted slab drops stamps"
+      (let [p2 (OffHeapPassport. slab registry :init)]
+        (dotimes [i 100] (.stamp p2 StateEnum/INIT (long i)))
+        (is (zero? (.freeSegments slab)))
+        (is (= (* 9 8) (count (.getEvents p2))))
+        (is (= (- 101 72) (.getDroppedCount p2)))
+        (.free p2)))
+
+    (testing "stops growing after a dropped stamp"
+      (let [slab (OffHeapSlab. 8 4)
+            other (OffHeapPassport. slab registry :other)
+            _ (dotimes [_ 10] (.stamp other :other))
+            p2 (OffHeapPassport. slab registry :init)]
+        (dotimes [_ 20] (.stamp p2 :init))
+        (is (= 16 (count (.getEvents p2))))
+        (.free other)
+        (is (= 2 (.freeSegments slab)))
+        ;; The stamps after the dropped ones must not reveal the events of the
+        ;; freed passport.
+        (dotimes [_ 10] (.stamp p2 :init))
+        (is (= (repeat 16 :init) (map #(.state %) (.getEvents p2))))
+        (is (= 15 (.getDroppedCount p2)))
+        (is (= 2 (.freeSegments slab)))
+        (.free p2)))
+
+    (testing "freeing returns segments"
+      (.free p)
+      (is (= 16 (.freeSegments slab)))
+      (is (thrown? IllegalStateException (.stamp p StateEnum/INIT)))
+      (is (thrown? IllegalStateException (.free p))))
+
+    (testing "concurrent stamping"
+      (let [p (OffHeapPassport. slab registry :init)]
+        (dorun (pmap (fn [t] (dotimes [_ 10] (.stamp p t))) (range 8)))
+        (is (= (merge {:init 1} (zipmap (range 8) (repeat 10)))
+               (frequencies (map #(.state %) (.getEvents p)))))))))
+
+(deftest compact-passport
+  (let [p (CompactPassport. StateEnum/INIT)
+        base (.timestamp (.findEventByState p StateEnum/INIT))
+        offsets [1 1000 4000000000 5000000000 -10 (* 3600 1000000000) 7]]
+    (doseq [[i off] (map-indexed vector offsets)]
+      (.stamp p (aget (StateEnum/values) (inc i)) (+ base off)))
+    (testing "timestamps are restored exactly, including escaped ones"
+      (is (= (cons 0 offsets)
+             (map #(- (.timestamp %) base) (.getEvents p))))))
+
+  (testing "coarser resolution truncates timestamps"
+    (let [p (CompactPassport. StateEnum/INIT TimeUnit/MICROSECONDS)
+          base (.timestamp (.findEventByState p StateEnum/INIT))]
+      (.stamp p StateEnum/CONNECTION_OPENED (+ base 1500))
+      (.stamp p StateEnum/CONNECTION_CLOSED (+ base (* 3600 1000000000) 999))
+      (is (= 1000 (.timeBetween p StateEnum/INIT StateEnum/CONNECTION_OPENED)))
+      (is (= (* 3600 1000000000) (.timeBetween p StateEnum/INIT StateEnum/CONNECTION_CLOSED))))))